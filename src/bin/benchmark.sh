@@ -0,0 +1,29 @@
+#!/bin/bash
+
+# Runs one of the benchmarks in the com.pehrs.spring.ai.bench package
+# Usage: benchmark.sh <BenchmarkClass> [args...]
+
+# root of the package
+PACKAGE_HOME=$(cd "$(dirname "$0")";cd ..;pwd)
+
+if [ -z "$1" ]; then
+    echo "Usage: $0 <BenchmarkClass> [args...]"
+    exit 1
+fi
+MAIN_CLASS=com.pehrs.spring.ai.bench.$1
+shift
+
+# classpath
+CLASSPATH="${PACKAGE_HOME}/classes:${PACKAGE_HOME}/lib/*"
+
+# JVM startup parameters
+JAVA_OPTS="-server -Xmx2g -Xms2g -Xmn256m"
+
+# use the *java* residing in JAVA_HOME
+export _EXECJAVA="$JAVA_HOME/bin/java"
+
+echo "MAIN_CLASS:"
+echo "      [${MAIN_CLASS}]"
+echo
+
+$_EXECJAVA $JAVA_OPTS -classpath $CLASSPATH $MAIN_CLASS "$@"
@@ -32,4 +32,4 @@ echo
 echo "-------------------------------------------"
 
 # start with *nohup* to prevent the OS from killing our program after logout
-$_EXECJAVA $JAVA_OPTS -classpath $CLASSPATH $MAIN_CLASS
+$_EXECJAVA $JAVA_OPTS -classpath $CLASSPATH $MAIN_CLASS "$@"
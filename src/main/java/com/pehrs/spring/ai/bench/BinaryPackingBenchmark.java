@@ -0,0 +1,54 @@
+package com.pehrs.spring.ai.bench;
+
+import com.pehrs.spring.ai.vespa.VespaTensors;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Packing the sign bits of an embedding for {@code vespa.cellType: BINARY}. Compares a straight
+ * forward packing of the {@code List<Double>} through a {@link BitSet} against
+ * {@link VespaTensors#packSignBits(float[], byte[])} into a reused buffer, which should allocate
+ * nothing.
+ *
+ * <pre>
+ * bin/benchmark.sh BinaryPackingBenchmark [embeddingSize]
+ * </pre>
+ */
+public class BinaryPackingBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int embeddingSize = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+
+    Random random = new Random(42);
+    List<Double> embedding = new ArrayList<>(embeddingSize);
+    float[] floats = new float[embeddingSize];
+    for (int i = 0; i < embeddingSize; i++) {
+      embedding.add(random.nextGaussian() * 3.0);
+      floats[i] = embedding.get(i).floatValue();
+    }
+
+    MicroBenchmark.printHeader("first byte");
+
+    MicroBenchmark.Result bitSet = MicroBenchmark.run("BitSet", 20_000, 100_000, () -> {
+      BitSet bits = new BitSet(embeddingSize);
+      for (int i = 0; i < embeddingSize; i++) {
+        if (embedding.get(i) > 0) {
+          // BitSet.toByteArray is little-endian within a byte, Vespa's pack_bits is big-endian
+          bits.set((i & ~7) | (7 - (i & 7)));
+        }
+      }
+      return bits.toByteArray();
+    });
+    MicroBenchmark.print(bitSet, ((byte[]) bitSet.sample())[0]);
+
+    byte[] packed = new byte[embeddingSize / 8];
+    MicroBenchmark.Result packSignBits = MicroBenchmark.run("packSignBits", 20_000, 100_000,
+        () -> {
+          VespaTensors.packSignBits(floats, packed);
+          return packed;
+        });
+    MicroBenchmark.print(packSignBits, ((byte[]) packSignBits.sample())[0]);
+  }
+}
@@ -0,0 +1,99 @@
+package com.pehrs.spring.ai.bench;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.pehrs.spring.ai.rss.FeedItemUrlParser;
+import com.pehrs.spring.ai.rss.RssFeed;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Compares reading the item urls of a large feed by mapping the whole body with
+ * {@code XmlMapper} against the streaming {@link FeedItemUrlParser}.
+ *
+ * <pre>
+ * bin/benchmark.sh FeedParserBenchmark [items]
+ * </pre>
+ */
+public class FeedParserBenchmark {
+
+  // Typical size of the buffers handed out by reactor-netty
+  private static final int NETWORK_BUFFER_BYTES = 8 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    int items = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+    XmlMapper xmlMapper = new XmlMapper();
+    xmlMapper.disable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
+
+    byte[] rss = rssFeed(items).getBytes(StandardCharsets.UTF_8);
+    byte[] atom = atomFeed(items).getBytes(StandardCharsets.UTF_8);
+    System.out.printf("%d items, RSS %d KB, Atom %d KB%n%n", items, rss.length / 1024,
+        atom.length / 1024);
+
+    MicroBenchmark.printHeader("urls");
+
+    MicroBenchmark.Result mapped = MicroBenchmark.run("RSS XmlMapper", 20, 50, () -> {
+      String body = new String(rss, StandardCharsets.UTF_8);
+      RssFeed rssFeed = xmlMapper.readValue(body, RssFeed.class);
+      return rssFeed.channel().items().stream()
+          .map(rssItem -> rssItem.link() == null ? rssItem.guid() : rssItem.link())
+          .collect(Collectors.toList());
+    });
+    MicroBenchmark.print(mapped, ((List<?>) mapped.sample()).size());
+
+    MicroBenchmark.Result streamedRss = MicroBenchmark.run("RSS streaming", 20, 50,
+        () -> streamUrls(rss));
+    MicroBenchmark.print(streamedRss, streamedRss.sample());
+
+    MicroBenchmark.Result streamedAtom = MicroBenchmark.run("Atom streaming", 20, 50,
+        () -> streamUrls(atom));
+    MicroBenchmark.print(streamedAtom, streamedAtom.sample());
+  }
+
+  private static int streamUrls(byte[] feed) {
+    FeedItemUrlParser parser = new FeedItemUrlParser();
+    int urls = 0;
+    for (int offset = 0; offset < feed.length; offset += NETWORK_BUFFER_BYTES) {
+      int length = Math.min(NETWORK_BUFFER_BYTES, feed.length - offset);
+      urls += parser.feed(ByteBuffer.wrap(feed, offset, length)).size();
+    }
+    return urls + parser.endOfInput().size();
+  }
+
+  private static String rssFeed(int items) {
+    StringBuilder feed = new StringBuilder(items * 600);
+    feed.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+        .append("<rss version=\"2.0\" xmlns:atom=\"http://www.w3.org/2005/Atom\"><channel>\n")
+        .append("<title>Benchmark</title><link>https://example.com/</link>\n")
+        .append("<atom:link href=\"https://example.com/rss.xml\" rel=\"self\"/>\n");
+    for (int i = 0; i < items; i++) {
+      feed.append("<item><title>Article ").append(i).append("</title>")
+          .append("<link>https://example.com/articles/").append(i).append("</link>")
+          .append("<guid isPermaLink=\"false\">article-").append(i).append("</guid>")
+          .append("<description><![CDATA[").append(description(i)).append("]]></description>")
+          .append("<pubDate>Mon, 01 Jan 2024 00:00:00 GMT</pubDate></item>\n");
+    }
+    return feed.append("</channel></rss>\n").toString();
+  }
+
+  private static String atomFeed(int items) {
+    StringBuilder feed = new StringBuilder(items * 600);
+    feed.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+        .append("<feed xmlns=\"http://www.w3.org/2005/Atom\"><title>Benchmark</title>\n")
+        .append("<link href=\"https://example.com/\"/>\n");
+    for (int i = 0; i < items; i++) {
+      feed.append("<entry><title>Article ").append(i).append("</title>")
+          .append("<link rel=\"alternate\" href=\"https://example.com/articles/").append(i)
+          .append("\"/><id>urn:article:").append(i).append("</id>")
+          .append("<summary>").append(description(i)).append("</summary>")
+          .append("<updated>2024-01-01T00:00:00Z</updated></entry>\n");
+    }
+    return feed.append("</feed>\n").toString();
+  }
+
+  private static String description(int i) {
+    return ("Summary of article " + i + ". ").repeat(12);
+  }
+}
@@ -0,0 +1,211 @@
+package com.pehrs.spring.ai.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.pehrs.spring.ai.vespa.VespaVectorStore;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Replays saved query embeddings against Vespa with different HNSW settings and reports the
+ * recall@k of the approximate nearest neighbor search, compared to an exact search, against the
+ * p50/p99 latency.
+ *
+ * <pre>
+ * # Save the embeddings of count stored chunks to use as queries
+ * bin/benchmark.sh HnswSweep sample queries.jsonl [count=200] [endpoint=http://localhost:8080]
+ *
+ * # Sweep hnsw.exploreAdditionalHits (comma separated) for the top k hits
+ * bin/benchmark.sh HnswSweep sweep queries.jsonl [k=10] [exploreAdditionalHits=0,10,50,100,200,500]
+ *     [endpoint=http://localhost:8080]
+ * </pre>
+ *
+ * <p>The query file has one embedding per line, as a JSON array. The index settings
+ * ({@code max-links-per-node}, {@code neighbors-to-explore-at-insert}) are in embeddings.sd, run
+ * the sweep again after changing them, redeploying and feeding.
+ */
+public class HnswSweep {
+
+  private static final String NAMESPACE = "llm";
+  private static final String DOC_TYPE = "embeddings";
+  private static final String CLUSTER = "llm";
+  private static final String EMBEDDING_FIELD = "embedding";
+  private static final String RANKING = "recommendation";
+  private static final String RANKING_INPUT = "q_embedding";
+  private static final int WARMUP_QUERIES = 20;
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+  private static final HttpClient httpClient = HttpClient.newHttpClient();
+
+  private record QueryResult(List<String> ids, long nanos) {
+
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.println("Usage: HnswSweep sample <queryFile> [count] [endpoint]");
+      System.out.println("       HnswSweep sweep <queryFile> [k] [exploreAdditionalHits] [endpoint]");
+      System.exit(1);
+    }
+    Path queryFile = Path.of(args[1]);
+    switch (args[0]) {
+      case "sample" -> {
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        String endpoint = args.length > 3 ? args[3] : "http://localhost:8080";
+        sample(endpoint, queryFile, count);
+      }
+      case "sweep" -> {
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int[] exploreAdditionalHits = Arrays.stream(
+                (args.length > 3 ? args[3] : "0,10,50,100,200,500").split(","))
+            .mapToInt(value -> Integer.parseInt(value.trim()))
+            .toArray();
+        String endpoint = args.length > 4 ? args[4] : "http://localhost:8080";
+        sweep(endpoint, queryFile, k, exploreAdditionalHits);
+      }
+      default -> throw new IllegalArgumentException("Unknown command: " + args[0]);
+    }
+  }
+
+  /**
+   * Visits the stored chunks and writes the embeddings of the first count of them.
+   */
+  private static void sample(String endpoint, Path queryFile, int count) throws Exception {
+    int written = 0;
+    String continuation = null;
+    try (BufferedWriter writer = Files.newBufferedWriter(queryFile, StandardCharsets.UTF_8)) {
+      do {
+        String url = String.format("%s/document/v1/%s/%s/docid?cluster=%s&fieldSet=%s:%s"
+                + "&wantedDocumentCount=%d", endpoint, NAMESPACE, DOC_TYPE, CLUSTER, DOC_TYPE,
+            EMBEDDING_FIELD, Math.min(count - written, 100));
+        if (continuation != null) {
+          url += "&continuation=" + URLEncoder.encode(continuation, StandardCharsets.UTF_8);
+        }
+        JsonNode page = send(HttpRequest.newBuilder(URI.create(url)).GET().build());
+        for (JsonNode document : page.path("documents")) {
+          JsonNode embedding = document.path("fields").path(EMBEDDING_FIELD);
+          JsonNode values = embedding.has("values") ? embedding.get("values") : embedding;
+          if (values.isArray() && written < count) {
+            writer.write(objectMapper.writeValueAsString(values));
+            writer.newLine();
+            written++;
+          }
+        }
+        continuation = page.has("continuation") ? page.get("continuation").asText() : null;
+      } while (continuation != null && written < count);
+    }
+    System.out.printf("Saved %d query embeddings to %s%n", written, queryFile);
+  }
+
+  private static void sweep(String endpoint, Path queryFile, int k, int[] exploreAdditionalHits)
+      throws Exception {
+    List<ArrayNode> queries = new ArrayList<>();
+    for (String line : Files.readAllLines(queryFile, StandardCharsets.UTF_8)) {
+      if (!line.isBlank()) {
+        queries.add((ArrayNode) objectMapper.readTree(line));
+      }
+    }
+    String queryUrl = endpoint + "/search/";
+    System.out.printf("%d queries, recall@%d%n%n", queries.size(), k);
+
+    // Warm up the caches and the JIT on both sides
+    for (int i = 0; i < Math.min(WARMUP_QUERIES, queries.size()); i++) {
+      query(queryUrl, queries.get(i), k, 0, true);
+      query(queryUrl, queries.get(i), k, 0, false);
+    }
+
+    List<List<String>> exactIds = new ArrayList<>();
+    long[] exactNanos = new long[queries.size()];
+    for (int i = 0; i < queries.size(); i++) {
+      QueryResult exact = query(queryUrl, queries.get(i), k, 0, false);
+      exactIds.add(exact.ids());
+      exactNanos[i] = exact.nanos();
+    }
+
+    System.out.printf("%-28s %10s %10s %10s%n", "SETTING", "recall", "p50 ms", "p99 ms");
+    print("approximate:false", 1.0, exactNanos);
+    for (int explore : exploreAdditionalHits) {
+      long[] nanos = new long[queries.size()];
+      double recall = 0;
+      for (int i = 0; i < queries.size(); i++) {
+        QueryResult approximate = query(queryUrl, queries.get(i), k, explore, true);
+        nanos[i] = approximate.nanos();
+        recall += recall(exactIds.get(i), approximate.ids());
+      }
+      print("exploreAdditionalHits:" + explore, recall / queries.size(), nanos);
+    }
+  }
+
+  private static double recall(List<String> exact, List<String> approximate) {
+    if (exact.isEmpty()) {
+      return 1.0;
+    }
+    Set<String> found = new HashSet<>(approximate);
+    return (double) exact.stream().filter(found::contains).count() / exact.size();
+  }
+
+  private static void print(String setting, double recall, long[] nanos) {
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    System.out.printf("%-28s %10.4f %10.2f %10.2f%n", setting, recall,
+        percentile(sorted, 0.50) / 1_000_000.0, percentile(sorted, 0.99) / 1_000_000.0);
+  }
+
+  private static long percentile(long[] sorted, double quantile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+  }
+
+  private static QueryResult query(String queryUrl, ArrayNode embedding, int k,
+      int exploreAdditionalHits, boolean approximate) throws Exception {
+    ObjectNode request = objectMapper.createObjectNode();
+    request.put("yql", String.format("select documentid from %s where %snearestNeighbor(%s,%s)",
+        DOC_TYPE, VespaVectorStore.nearestNeighborAnnotations(k, exploreAdditionalHits,
+            approximate), EMBEDDING_FIELD, RANKING_INPUT));
+    request.putObject("input").set("query(" + RANKING_INPUT + ")", embedding);
+    request.put("ranking", RANKING);
+    request.put("hits", k);
+    request.put("timeout", "10s");
+    request.putObject("presentation").put("summary", "hashes");
+    long start = System.nanoTime();
+    JsonNode response = send(HttpRequest.newBuilder(URI.create(queryUrl))
+        .header("Content-Type", "application/json")
+        .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(request)))
+        .build());
+    long nanos = System.nanoTime() - start;
+    JsonNode root = response.path("root");
+    if (root.has("errors")) {
+      throw new IllegalStateException(root.get("errors").toString());
+    }
+    List<String> ids = new ArrayList<>();
+    root.path("children").forEach(hit -> ids.add(hit.path("id").asText()));
+    return new QueryResult(ids, nanos);
+  }
+
+  private static JsonNode send(HttpRequest request) throws IOException, InterruptedException {
+    HttpResponse<String> response = httpClient.send(request,
+        HttpResponse.BodyHandlers.ofString());
+    if (response.statusCode() / 100 != 2) {
+      throw new IOException(request.uri() + " returned " + response.statusCode() + ": "
+          + response.body());
+    }
+    return objectMapper.readTree(response.body());
+  }
+}
@@ -0,0 +1,97 @@
+package com.pehrs.spring.ai.bench;
+
+import com.pehrs.spring.ai.rss.HtmlTextExtractor;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.reader.tika.TikaDocumentReader;
+import org.springframework.core.io.ByteArrayResource;
+
+/**
+ * Compares extracting the text of news pages with Tika against the {@link HtmlTextExtractor}.
+ * Runs on the {@code .html} files in the given directory (save a few pages from the feeds with
+ * curl), or on generated pages if no directory is given.
+ *
+ * <pre>
+ * bin/benchmark.sh HtmlExtractionBenchmark [pageDirectory]
+ * </pre>
+ */
+public class HtmlExtractionBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    List<byte[]> pages = args.length > 0 ? readPages(Path.of(args[0])) : generatedPages(20);
+    long totalBytes = pages.stream().mapToLong(page -> page.length).sum();
+    System.out.printf("%d pages, %d KB%n%n", pages.size(), totalBytes / 1024);
+
+    MicroBenchmark.printHeader("pages/s", "text chars");
+
+    MicroBenchmark.Result tika = MicroBenchmark.run("Tika", 3, 10, () -> {
+      int chars = 0;
+      for (byte[] page : pages) {
+        for (Document document : new TikaDocumentReader(
+            new ByteArrayResource(page, "page.html")).get()) {
+          chars += document.getContent().length();
+        }
+      }
+      return chars;
+    });
+    MicroBenchmark.print(tika, pagesPerSecond(tika, pages.size()), tika.sample());
+
+    HtmlTextExtractor htmlTextExtractor = new HtmlTextExtractor();
+    MicroBenchmark.Result html = MicroBenchmark.run("HtmlTextExtractor", 3, 10, () -> {
+      int chars = 0;
+      for (byte[] page : pages) {
+        chars += htmlTextExtractor.extract(page, "text/html").length();
+      }
+      return chars;
+    });
+    MicroBenchmark.print(html, pagesPerSecond(html, pages.size()), html.sample());
+  }
+
+  private static String pagesPerSecond(MicroBenchmark.Result result, int pages) {
+    return String.format("%.1f", pages * 1_000_000_000.0 / result.nsPerOp());
+  }
+
+  private static List<byte[]> readPages(Path directory) throws Exception {
+    List<byte[]> pages = new ArrayList<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : files.filter(file -> file.toString().endsWith(".html")).toList()) {
+        pages.add(Files.readAllBytes(file));
+      }
+    }
+    return pages;
+  }
+
+  private static List<byte[]> generatedPages(int count) {
+    List<byte[]> pages = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      StringBuilder page = new StringBuilder();
+      page.append("<!DOCTYPE html><html lang=\"sv\"><head><meta charset=\"utf-8\">")
+          .append("<title>Article ").append(i).append("</title>")
+          .append("<style>").append("body { margin: 0; } .nav a { color: #333; } ".repeat(200))
+          .append("</style>")
+          .append("<script>").append("window.dataLayer = window.dataLayer || []; ".repeat(300))
+          .append("</script></head><body>")
+          .append("<header><nav><ul>");
+      for (int link = 0; link < 40; link++) {
+        page.append("<li><a href=\"/section/").append(link).append("\">Section ")
+            .append(link).append("</a></li>");
+      }
+      page.append("</ul></nav></header><main><article><h1>Headline of article ").append(i)
+          .append("</h1>");
+      for (int paragraph = 0; paragraph < 15; paragraph++) {
+        page.append("<p>Det h&auml;r &auml;r stycke ").append(paragraph)
+            .append(". Lorem ipsum dolor sit amet, <a href=\"/x\">consectetur</a> adipiscing ")
+            .append("elit, sed do eiusmod tempor incididunt ut labore et dolore magna aliqua. ")
+            .append("Ut enim ad minim veniam &ndash; quis nostrud exercitation.</p>");
+      }
+      page.append("</article></main><footer><p>Copyright</p></footer></body></html>");
+      pages.add(page.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    return pages;
+  }
+}
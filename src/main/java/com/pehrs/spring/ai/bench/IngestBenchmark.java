@@ -0,0 +1,383 @@
+package com.pehrs.spring.ai.bench;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.pehrs.spring.ai.etl.PopulateVespaVectorStore;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingClient;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.explore.JobExplorer;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+/**
+ * Runs the ingest job of {@link PopulateVespaVectorStore} end to end without Vespa, Ollama or the
+ * internet. A local server serves generated feeds and articles and stands in for the Vespa
+ * /document/v1 and query API, with a configurable latency and share of failed puts. The embedding
+ * model is replaced by a deterministic client returning 4096 dimension vectors.
+ *
+ * <pre>
+ * bin/benchmark.sh IngestBenchmark [feeds=4] [itemsPerFeed=50] [putLatencyMs=5]
+ *     [putErrorRate=0.0] [embedLatencyMs=0]
+ * </pre>
+ *
+ * <p>Any further arguments are passed on to the application, e.g.
+ * {@code --vespa.feed.maxInFlight=64}. The rates are over the job only, from the start and end
+ * time of its execution, not over the start of the application. The allocation rate is summed
+ * over the live threads from when the application has started and runs the job, so threads that
+ * end during the run are only counted up to their last sample.
+ */
+public class IngestBenchmark {
+
+  private static final int EMBEDDING_SIZE = 4096;
+
+  private static final String[] WORDS = ("government parliament council police school "
+      + "hospital election budget tax climate electricity housing train road harbour company "
+      + "bank market researchers study report court prosecutor witness storm snow heat match "
+      + "team coach audience concert film book exhibition said announced proposed criticised "
+      + "decided reported showed increased decreased closed opened during after before despite "
+      + "according meanwhile also again soon already").split(" ");
+
+  private static volatile long embedLatencyMs;
+
+  public static void main(String[] args) throws Exception {
+    int feeds = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int itemsPerFeed = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    long putLatencyMs = args.length > 2 ? Long.parseLong(args[2]) : 5;
+    double putErrorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.0;
+    embedLatencyMs = args.length > 4 ? Long.parseLong(args[4]) : 0;
+
+    StubServer stubServer = new StubServer(itemsPerFeed, putLatencyMs, putErrorRate);
+    DisposableServer server = stubServer.start();
+    String baseUrl = "http://localhost:" + server.port();
+    List<String> rssFeeds = new ArrayList<>();
+    for (int feed = 0; feed < feeds; feed++) {
+      rssFeeds.add(baseUrl + "/feed/" + feed);
+    }
+    System.setProperty("rss.feeds", String.join(",", rssFeeds));
+
+    List<String> appArgs = new ArrayList<>(List.of(
+        "--vespa.container.endpoint=" + baseUrl,
+        // Nothing cached from an earlier run, every article is fetched and every chunk embedded
+        "--vespa.embeddingCache.path=",
+        "--rss.httpCache.path=",
+        "--spring.datasource.url=jdbc:h2:mem:ingest-benchmark",
+        "--ingest.daemon.enabled=false"));
+    for (int i = 5; i < args.length; i++) {
+      appArgs.add(args[i]);
+    }
+
+    System.out.printf("%d feeds with %d articles, put latency %d ms, put error rate %.2f,"
+            + " embed latency %d ms%n%n", feeds, itemsPerFeed, putLatencyMs, putErrorRate,
+        embedLatencyMs);
+
+    // The job is run by an ApplicationRunner, right after the context has started
+    AtomicReference<AllocationSampler> allocationSampler = new AtomicReference<>();
+    SpringApplication app = new SpringApplication(PopulateVespaVectorStore.class,
+        StubEmbeddingConfig.class);
+    app.setWebApplicationType(WebApplicationType.NONE);
+    app.addListeners((ApplicationListener<ApplicationStartedEvent>) event -> {
+      AllocationSampler sampler = new AllocationSampler();
+      sampler.start();
+      allocationSampler.set(sampler);
+    });
+    ConfigurableApplicationContext ctx = app.run(appArgs.toArray(new String[0]));
+    long allocatedBytes = allocationSampler.get().finish();
+
+    JobExplorer jobExplorer = ctx.getBean(JobExplorer.class);
+    JobInstance jobInstance =
+        jobExplorer.getLastJobInstance(ctx.getBean("job1", Job.class).getName());
+    JobExecution jobExecution = jobExplorer.getLastJobExecution(jobInstance);
+    double seconds = Duration.between(jobExecution.getStartTime(), jobExecution.getEndTime())
+        .toNanos() / 1_000_000_000.0;
+    MetricRegistry metricRegistry = ctx.getBean(MetricRegistry.class);
+    SpringApplication.exit(ctx);
+    server.disposeNow();
+
+    long inserted = count(metricRegistry.getMeters().get("insert.rps"));
+    System.out.println();
+    System.out.printf("%-28s %12s%n", "articles served", stubServer.articles.get());
+    System.out.printf("%-28s %12s%n", "puts received", stubServer.puts.get());
+    System.out.printf("%-28s %12s%n", "puts failed (injected)", stubServer.failedPuts.get());
+    System.out.printf("%-28s %12s%n", "documents fed", inserted);
+    System.out.printf("%-28s %12s%n", "job status", jobExecution.getStatus());
+    System.out.printf("%-28s %12.1f%n", "job seconds", seconds);
+    System.out.printf("%-28s %12.1f%n", "documents/s", inserted / seconds);
+    System.out.printf("%-28s %12.1f%n", "allocation MB/s", allocatedBytes / seconds / 1024 / 1024);
+    System.out.printf("%-28s %12.1f%n", "allocation KB/document",
+        inserted == 0 ? 0.0 : allocatedBytes / 1024.0 / inserted);
+    System.out.println();
+
+    System.out.printf("%-28s %10s %10s %10s %10s %10s%n",
+        "LATENCY (ms)", "count", "p50", "p95", "p99", "max");
+    for (String name : List.of("fetch.article.ms", "extract.article.ms", "split.document.ms",
+        "embedding.batch.ms", "feed.queue.ms", "insert.ms")) {
+      Histogram histogram = metricRegistry.getHistograms().get(name);
+      if (histogram == null) {
+        continue;
+      }
+      Snapshot snapshot = histogram.getSnapshot();
+      System.out.printf("%-28s %10d %10.1f %10.1f %10.1f %10d%n", name, histogram.getCount(),
+          snapshot.getMedian(), snapshot.get95thPercentile(), snapshot.get99thPercentile(),
+          snapshot.getMax());
+    }
+  }
+
+  private static long count(Meter meter) {
+    return meter == null ? 0 : meter.getCount();
+  }
+
+  /**
+   * Serves the feeds and articles, and accepts document puts and content hash queries like Vespa
+   * would.
+   */
+  static class StubServer {
+
+    private final int itemsPerFeed;
+    private final long putLatencyMs;
+    private final double putErrorRate;
+
+    final AtomicLong articles = new AtomicLong();
+    final AtomicLong puts = new AtomicLong();
+    final AtomicLong failedPuts = new AtomicLong();
+    private volatile int port;
+
+    StubServer(int itemsPerFeed, long putLatencyMs, double putErrorRate) {
+      this.itemsPerFeed = itemsPerFeed;
+      this.putLatencyMs = putLatencyMs;
+      this.putErrorRate = putErrorRate;
+    }
+
+    DisposableServer start() {
+      DisposableServer server = HttpServer.create()
+          .host("localhost")
+          .port(0)
+          .route(routes -> routes
+              .get("/feed/{feed}", (request, response) -> response
+                  .header("Content-Type", "application/rss+xml; charset=utf-8")
+                  .sendString(Mono.fromCallable(() -> feed(request.param("feed")))))
+              .get("/article/{feed}/{item}", (request, response) -> {
+                articles.incrementAndGet();
+                return response
+                    .header("Content-Type", "text/html; charset=utf-8")
+                    .sendByteArray(Mono.fromCallable(() ->
+                        article(request.param("feed"), request.param("item"))));
+              })
+              .route(request -> request.uri().startsWith("/document/v1/"), this::put)
+              .post("/search/", (request, response) -> request.receive().then(response
+                  .header("Content-Type", "application/json")
+                  .sendString(Mono.just("{\"root\":{\"fields\":{\"totalCount\":0}}}"))
+                  .then())))
+          .bindNow();
+      this.port = server.port();
+      return server;
+    }
+
+    private Mono<Void> put(HttpServerRequest request, HttpServerResponse response) {
+      puts.incrementAndGet();
+      boolean fail = ThreadLocalRandom.current().nextDouble() < putErrorRate;
+      if (fail) {
+        failedPuts.incrementAndGet();
+      }
+      String path = request.uri();
+      return request.receive().then()
+          .then(Mono.delay(Duration.ofMillis(putLatencyMs)))
+          .then(fail
+              ? response.status(500)
+              .header("Content-Type", "application/json")
+              .sendString(Mono.just("{\"pathId\":\"" + path
+                  + "\",\"message\":\"Injected failure\"}")).then()
+              : response
+                  .header("Content-Type", "application/json")
+                  .sendString(Mono.just("{\"pathId\":\"" + path + "\"}")).then());
+    }
+
+    private String feed(String feed) {
+      StringBuilder xml = new StringBuilder(
+          "<?xml version=\"1.0\" encoding=\"UTF-8\"?><rss version=\"2.0\"><channel>")
+          .append("<title>Feed ").append(feed).append("</title>");
+      for (int item = 0; item < itemsPerFeed; item++) {
+        String link = "http://localhost:" + port + "/article/" + feed + "/" + item;
+        xml.append("<item><title>Article ").append(item).append("</title><link>")
+            .append(link).append("</link><guid>").append(link).append("</guid></item>");
+      }
+      return xml.append("</channel></rss>").toString();
+    }
+
+    /**
+     * A news page with a few thousand words of text that differ between the articles, so the
+     * chunks are not dropped as near duplicates.
+     */
+    private static byte[] article(String feed, String item) {
+      SplittableRandom random = new SplittableRandom((feed + "/" + item).hashCode());
+      StringBuilder page = new StringBuilder()
+          .append("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>Article ")
+          .append(item).append("</title><script>window.dataLayer = [];</script></head><body>")
+          .append("<header><nav><a href=\"/\">Start</a></nav></header><main><article><h1>")
+          .append("Article ").append(item).append(" of feed ").append(feed).append("</h1>");
+      int paragraphs = 10 + random.nextInt(20);
+      for (int paragraph = 0; paragraph < paragraphs; paragraph++) {
+        page.append("<p>");
+        int sentences = 3 + random.nextInt(5);
+        for (int sentence = 0; sentence < sentences; sentence++) {
+          int words = 6 + random.nextInt(14);
+          for (int word = 0; word < words; word++) {
+            String text = WORDS[random.nextInt(WORDS.length)];
+            page.append(word == 0 ? Character.toUpperCase(text.charAt(0)) + text.substring(1)
+                : " " + text);
+          }
+          page.append(". ");
+        }
+        page.append("</p>");
+      }
+      page.append("</article></main><footer>Copyright</footer></body></html>");
+      return page.toString().getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  @Configuration
+  static class StubEmbeddingConfig {
+
+    @Bean
+    @Primary
+    public EmbeddingClient stubEmbeddingClient() {
+      return new StubEmbeddingClient();
+    }
+  }
+
+  /**
+   * Returns a unit vector seeded by the hash of the text, the same text always gets the same
+   * embedding.
+   */
+  static class StubEmbeddingClient implements EmbeddingClient {
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+      if (embedLatencyMs > 0) {
+        try {
+          Thread.sleep(embedLatencyMs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      List<Embedding> embeddings = new ArrayList<>();
+      List<String> texts = request.getInstructions();
+      for (int i = 0; i < texts.size(); i++) {
+        embeddings.add(new Embedding(embed(texts.get(i).hashCode()), i));
+      }
+      return new EmbeddingResponse(embeddings);
+    }
+
+    @Override
+    public List<Double> embed(Document document) {
+      return embed(document.getContent().hashCode());
+    }
+
+    @Override
+    public int dimensions() {
+      return EMBEDDING_SIZE;
+    }
+
+    private static List<Double> embed(long seed) {
+      SplittableRandom random = new SplittableRandom(seed);
+      double[] values = new double[EMBEDDING_SIZE];
+      double norm = 0;
+      for (int i = 0; i < values.length; i++) {
+        values[i] = random.nextDouble() * 2 - 1;
+        norm += values[i] * values[i];
+      }
+      norm = Math.sqrt(norm);
+      List<Double> embedding = new ArrayList<>(values.length);
+      for (double value : values) {
+        embedding.add(value / norm);
+      }
+      return embedding;
+    }
+  }
+
+  /**
+   * Samples the bytes allocated by every live thread, keeping the last sample of each thread.
+   */
+  static class AllocationSampler extends Thread {
+
+    private static final com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final Map<Long, Long> baseline = new HashMap<>();
+    private final Map<Long, Long> allocated = new HashMap<>();
+    private volatile boolean running = true;
+
+    AllocationSampler() {
+      super("allocation-sampler");
+      setDaemon(true);
+      sample(this.baseline);
+    }
+
+    @Override
+    public void run() {
+      while (this.running) {
+        synchronized (this.allocated) {
+          sample(this.allocated);
+        }
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    long finish() throws InterruptedException {
+      this.running = false;
+      this.interrupt();
+      this.join();
+      synchronized (this.allocated) {
+        sample(this.allocated);
+        long total = 0;
+        for (Map.Entry<Long, Long> thread : this.allocated.entrySet()) {
+          total += thread.getValue() - this.baseline.getOrDefault(thread.getKey(), 0L);
+        }
+        return total;
+      }
+    }
+
+    private static void sample(Map<Long, Long> samples) {
+      long[] threadIds = threadMXBean.getAllThreadIds();
+      long[] bytes = threadMXBean.getThreadAllocatedBytes(threadIds);
+      for (int i = 0; i < threadIds.length; i++) {
+        if (bytes[i] >= 0) {
+          samples.put(threadIds[i], bytes[i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package com.pehrs.spring.ai.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+
+/**
+ * Minimal single threaded benchmark loop: warms up, then measures the average time and the bytes
+ * allocated per operation on the calling thread.
+ */
+public final class MicroBenchmark {
+
+  public record Result(String name, double nsPerOp, double bytesPerOp, Object sample) {
+
+  }
+
+  private static final com.sun.management.ThreadMXBean threadMXBean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  // Results are written here so the JIT cannot drop the benchmarked calls
+  private static volatile Object blackhole;
+
+  private MicroBenchmark() {
+  }
+
+  public static Result run(String name, int warmupOps, int measuredOps, Callable<?> op)
+      throws Exception {
+    for (int i = 0; i < warmupOps; i++) {
+      blackhole = op.call();
+    }
+    long threadId = Thread.currentThread().getId();
+    long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+    Object sample = null;
+    for (int i = 0; i < measuredOps; i++) {
+      sample = op.call();
+      blackhole = sample;
+    }
+    long elapsed = System.nanoTime() - start;
+    long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+    return new Result(name, (double) elapsed / measuredOps, (double) allocated / measuredOps,
+        sample);
+  }
+
+  public static void printHeader(String... extraColumns) {
+    System.out.printf("%-28s %12s %14s", "NAME", "us/op", "alloc KB/op");
+    for (String column : extraColumns) {
+      System.out.printf(" %14s", column);
+    }
+    System.out.println();
+  }
+
+  public static void print(Result result, Object... extraValues) {
+    System.out.printf("%-28s %12.2f %14.2f", result.name(), result.nsPerOp() / 1000.0,
+        result.bytesPerOp() / 1024.0);
+    for (Object value : extraValues) {
+      System.out.printf(" %14s", value);
+    }
+    System.out.println();
+  }
+}
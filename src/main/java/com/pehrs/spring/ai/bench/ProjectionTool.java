@@ -0,0 +1,167 @@
+package com.pehrs.spring.ai.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pehrs.spring.ai.vespa.EmbeddingProjection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Learns the projection used by {@code vespa.projectionPath}, and reports the recall lost by
+ * searching projected embeddings at a range of dimensions.
+ *
+ * <pre>
+ * # Save a sample of the stored embeddings first
+ * bin/benchmark.sh HnswSweep sample corpus.jsonl 2000
+ *
+ * # Learn a PCA (or random) projection to the given dimensions
+ * bin/benchmark.sh ProjectionTool learn corpus.jsonl projection.bin [dimensions=512] [pca|random]
+ *
+ * # Recall@k of PCA and random projections to each of the dimensions (comma separated)
+ * bin/benchmark.sh ProjectionTool report corpus.jsonl [dimensions=64,128,256,512,1024] [k=10]
+ * </pre>
+ *
+ * <p>The report learns from all but the last 50 embeddings of the sample and uses those 50 as
+ * queries. The search is exact (brute force), so only the loss from the projection is measured.
+ */
+public class ProjectionTool {
+
+  private static final int QUERIES = 50;
+  private static final long SEED = 42;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.println(
+          "Usage: ProjectionTool learn <sampleFile> <projectionFile> [dimensions] [pca|random]");
+      System.out.println("       ProjectionTool report <sampleFile> [dimensions] [k]");
+      System.exit(1);
+    }
+    List<float[]> sample = readEmbeddings(Path.of(args[1]));
+    switch (args[0]) {
+      case "learn" -> {
+        Path projectionFile = Path.of(args[2]);
+        int dimensions = args.length > 3 ? Integer.parseInt(args[3]) : 512;
+        String method = args.length > 4 ? args[4] : "pca";
+        long start = System.currentTimeMillis();
+        EmbeddingProjection projection = learn(method, sample, dimensions);
+        projection.save(projectionFile);
+        System.out.printf("Saved a %s projection from %d to %d dimensions to %s (%d ms)%n",
+            method, projection.sourceDimensions(), dimensions, projectionFile,
+            System.currentTimeMillis() - start);
+        System.out.printf("Set vespa.projectionPath: %s and deploy vespa-projected with the"
+            + " embedding tensor d0[%d]%n", projectionFile.toAbsolutePath(), dimensions);
+      }
+      case "report" -> {
+        int[] dimensions = Arrays.stream(
+                (args.length > 2 ? args[2] : "64,128,256,512,1024").split(","))
+            .mapToInt(value -> Integer.parseInt(value.trim()))
+            .toArray();
+        int k = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        report(sample, dimensions, k);
+      }
+      default -> throw new IllegalArgumentException("Unknown command: " + args[0]);
+    }
+  }
+
+  private static EmbeddingProjection learn(String method, List<float[]> sample, int dimensions) {
+    return switch (method) {
+      case "pca" -> EmbeddingProjection.pca(sample, dimensions, SEED);
+      case "random" -> EmbeddingProjection.random(sample.get(0).length, dimensions, SEED);
+      default -> throw new IllegalArgumentException("Unknown projection: " + method);
+    };
+  }
+
+  private static void report(List<float[]> sample, int[] dimensions, int k) {
+    if (sample.size() <= QUERIES + k) {
+      throw new IllegalArgumentException("Need more than " + (QUERIES + k) + " embeddings");
+    }
+    List<float[]> queries = sample.subList(sample.size() - QUERIES, sample.size());
+    List<float[]> corpus = sample.subList(0, sample.size() - QUERIES);
+    int sourceDimensions = corpus.get(0).length;
+    System.out.printf("%d documents, %d queries, %d dimensions, recall@%d%n%n", corpus.size(),
+        queries.size(), sourceDimensions, k);
+
+    List<int[]> exact = new ArrayList<>();
+    for (float[] query : queries) {
+      exact.add(topK(query, corpus, k));
+    }
+
+    // The PCA components are ordered by variance, so one PCA gives all the smaller dimensions
+    int maxPcaDimensions = Math.min(Arrays.stream(dimensions).max().orElse(0),
+        Math.min(corpus.size(), sourceDimensions));
+    long start = System.currentTimeMillis();
+    EmbeddingProjection pca = EmbeddingProjection.pca(corpus, maxPcaDimensions, SEED);
+    System.out.printf("Learned a PCA of %d components in %d ms%n%n", maxPcaDimensions,
+        System.currentTimeMillis() - start);
+
+    System.out.printf("%-12s %12s %12s %12s%n", "DIMENSIONS", "size", "PCA recall",
+        "random recall");
+    for (int target : dimensions) {
+      String pcaRecall = target <= maxPcaDimensions
+          ? String.format("%.4f", recall(pca.truncate(target), queries, corpus, exact, k)) : "-";
+      double randomRecall = recall(EmbeddingProjection.random(sourceDimensions, target, SEED),
+          queries, corpus, exact, k);
+      System.out.printf("%-12d %11.1f%% %12s %12.4f%n", target,
+          100.0 * target / sourceDimensions, pcaRecall, randomRecall);
+    }
+  }
+
+  private static double recall(EmbeddingProjection projection, List<float[]> queries,
+      List<float[]> corpus, List<int[]> exact, int k) {
+    List<float[]> projectedCorpus = corpus.parallelStream().map(projection::project).toList();
+    double recall = 0;
+    for (int q = 0; q < queries.size(); q++) {
+      int[] found = topK(projection.project(queries.get(q)), projectedCorpus, k);
+      Set<Integer> foundSet = new HashSet<>();
+      for (int i : found) {
+        foundSet.add(i);
+      }
+      recall += (double) Arrays.stream(exact.get(q)).filter(foundSet::contains).count() / k;
+    }
+    return recall / queries.size();
+  }
+
+  private static int[] topK(float[] query, List<float[]> corpus, int k) {
+    double[] distances = new double[corpus.size()];
+    for (int i = 0; i < corpus.size(); i++) {
+      float[] document = corpus.get(i);
+      double sum = 0;
+      for (int d = 0; d < query.length; d++) {
+        double diff = query[d] - document[d];
+        sum += diff * diff;
+      }
+      distances[i] = sum;
+    }
+    return IntStream.range(0, corpus.size())
+        .boxed()
+        .sorted(Comparator.comparingDouble(i -> distances[i]))
+        .limit(k)
+        .mapToInt(Integer::intValue)
+        .toArray();
+  }
+
+  private static List<float[]> readEmbeddings(Path file) throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+    List<float[]> embeddings = new ArrayList<>();
+    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+      if (line.isBlank()) {
+        continue;
+      }
+      JsonNode values = objectMapper.readTree(line);
+      float[] embedding = new float[values.size()];
+      for (int i = 0; i < embedding.length; i++) {
+        embedding[i] = (float) values.get(i).asDouble();
+      }
+      embeddings.add(embedding);
+    }
+    return embeddings;
+  }
+}
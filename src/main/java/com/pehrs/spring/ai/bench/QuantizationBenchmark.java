@@ -0,0 +1,217 @@
+package com.pehrs.spring.ai.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pehrs.spring.ai.vespa.CellType;
+import com.pehrs.spring.ai.vespa.VespaTensors;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Memory per document and recall of the nearest neighbor search on reduced precision and binary
+ * embeddings ({@code vespa.cellType}) compared to the float baseline, with and without
+ * re-ranking the best hits by the full precision embedding. The search is exact (brute force), so the recall loss
+ * is only from the quantization and not from HNSW.
+ *
+ * <pre>
+ * bin/benchmark.sh QuantizationBenchmark [embeddingFile] [k=10] [rerankCount=100] [int8Scale]
+ * </pre>
+ *
+ * <p>The embedding file has one embedding per line as a JSON array, as saved by
+ * {@code HnswSweep sample}. The last 50 embeddings are used as queries against the others.
+ * Without a file clustered random embeddings are generated. The int8 scale defaults to mapping
+ * the largest absolute cell value to 127.
+ */
+public class QuantizationBenchmark {
+
+  private static final int QUERIES = 50;
+  // Vespa defaults, level 0 of the HNSW graph has 2 * max-links-per-node links of 4 bytes
+  private static final int MAX_LINKS_PER_NODE = 16;
+  private static final int HNSW_BYTES_PER_DOCUMENT = 2 * MAX_LINKS_PER_NODE * 4 + 16;
+
+  public static void main(String[] args) throws Exception {
+    List<float[]> embeddings = args.length > 0 && !args[0].isBlank()
+        ? readEmbeddings(Path.of(args[0])) : generatedEmbeddings(4_000, 4096);
+    int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    int rerankCount = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+    float maxAbs = 0;
+    for (float[] embedding : embeddings) {
+      for (float value : embedding) {
+        maxAbs = Math.max(maxAbs, Math.abs(value));
+      }
+    }
+    float int8Scale = args.length > 3 ? Float.parseFloat(args[3]) : 127 / maxAbs;
+    int dimensions = embeddings.get(0).length;
+
+    List<float[]> queries = embeddings.subList(embeddings.size() - QUERIES, embeddings.size());
+    List<float[]> corpus = embeddings.subList(0, embeddings.size() - QUERIES);
+    System.out.printf("%d documents, %d queries, %d dimensions, recall@%d, re-rank %d,"
+        + " int8Scale %.3f (max |cell| %.3f)%n%n", corpus.size(), queries.size(), dimensions, k,
+        rerankCount, int8Scale, maxAbs);
+
+    List<int[]> exact = new ArrayList<>();
+    for (float[] query : queries) {
+      exact.add(topK(corpus.size(), i -> squaredDistance(query, corpus.get(i)), k));
+    }
+
+    System.out.printf("%-12s %14s %14s %12s %12s%n", "CELL TYPE", "memory KB/doc", "disk KB/doc",
+        "recall", "re-ranked");
+    for (CellType cellType : CellType.values()) {
+      List<float[]> quantizedCorpus = new ArrayList<>(corpus.size());
+      List<byte[]> packedCorpus = new ArrayList<>(corpus.size());
+      for (float[] embedding : corpus) {
+        if (cellType == CellType.BINARY) {
+          packedCorpus.add(packSignBits(embedding));
+        } else {
+          quantizedCorpus.add(VespaTensors.quantize(embedding, cellType, int8Scale));
+        }
+      }
+      double recall = 0;
+      double rerankedRecall = 0;
+      for (int q = 0; q < queries.size(); q++) {
+        int[] candidates;
+        if (cellType == CellType.BINARY) {
+          byte[] packedQuery = packSignBits(queries.get(q));
+          candidates = topK(corpus.size(), i -> hammingDistance(packedQuery, packedCorpus.get(i)),
+              Math.max(k, rerankCount));
+        } else {
+          float[] quantizedQuery = VespaTensors.quantize(queries.get(q), cellType, int8Scale);
+          candidates = topK(corpus.size(),
+              i -> squaredDistance(quantizedQuery, quantizedCorpus.get(i)),
+              Math.max(k, rerankCount));
+        }
+        recall += recall(exact.get(q), Arrays.copyOf(candidates, k));
+        rerankedRecall += recall(exact.get(q), rerank(queries.get(q), corpus, candidates, k));
+      }
+      int cellBytes = switch (cellType) {
+        case FLOAT -> 4;
+        case BFLOAT16 -> 2;
+        case INT8, BINARY -> 1;
+      };
+      // The reduced types keep the float embedding as a paged attribute on disk
+      long cells = cellType == CellType.BINARY ? dimensions / 8 : dimensions;
+      long memoryBytes = cells * cellBytes + HNSW_BYTES_PER_DOCUMENT;
+      long diskBytes = cellType == CellType.FLOAT ? 0 : (long) dimensions * 4;
+      String reranked = cellType == CellType.FLOAT ? "-"
+          : String.format("%.4f", rerankedRecall / queries.size());
+      System.out.printf("%-12s %14.2f %14.2f %12.4f %12s%n", cellType, memoryBytes / 1024.0,
+          diskBytes / 1024.0, recall / queries.size(), reranked);
+    }
+
+    System.out.println();
+    float[] embedding = queries.get(0);
+    MicroBenchmark.printHeader("payload chars");
+    for (CellType cellType : CellType.values()) {
+      MicroBenchmark.Result result = MicroBenchmark.run("feed HEX " + cellType, 2_000, 10_000,
+          () -> VespaTensors.toHex(embedding, cellType, int8Scale));
+      MicroBenchmark.print(result, result.sample().toString().length());
+    }
+  }
+
+  private static int[] topK(int corpusSize, IntToDoubleFunction distance, int k) {
+    double[] distances = new double[corpusSize];
+    for (int i = 0; i < corpusSize; i++) {
+      distances[i] = distance.applyAsDouble(i);
+    }
+    return IntStream.range(0, corpusSize)
+        .boxed()
+        .sorted(Comparator.comparingDouble(i -> distances[i]))
+        .limit(k)
+        .mapToInt(Integer::intValue)
+        .toArray();
+  }
+
+  private static int[] rerank(float[] query, List<float[]> corpus, int[] candidates, int k) {
+    return Arrays.stream(candidates)
+        .boxed()
+        .sorted(Comparator.comparingDouble(i -> squaredDistance(query, corpus.get(i))))
+        .limit(k)
+        .mapToInt(Integer::intValue)
+        .toArray();
+  }
+
+  private static double squaredDistance(float[] a, float[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      double diff = a[i] - b[i];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  private static byte[] packSignBits(float[] embedding) {
+    byte[] packed = new byte[embedding.length / 8];
+    VespaTensors.packSignBits(embedding, packed);
+    return packed;
+  }
+
+  private static int hammingDistance(byte[] a, byte[] b) {
+    int distance = 0;
+    for (int i = 0; i < a.length; i++) {
+      distance += Integer.bitCount((a[i] ^ b[i]) & 0xFF);
+    }
+    return distance;
+  }
+
+  private static double recall(int[] exact, int[] found) {
+    Set<Integer> foundSet = new HashSet<>();
+    for (int i : found) {
+      foundSet.add(i);
+    }
+    return (double) Arrays.stream(exact).filter(foundSet::contains).count() / exact.length;
+  }
+
+  private static List<float[]> readEmbeddings(Path file) throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+    List<float[]> embeddings = new ArrayList<>();
+    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+      if (line.isBlank()) {
+        continue;
+      }
+      JsonNode values = objectMapper.readTree(line);
+      float[] embedding = new float[values.size()];
+      for (int i = 0; i < embedding.length; i++) {
+        embedding[i] = (float) values.get(i).asDouble();
+      }
+      embeddings.add(embedding);
+    }
+    if (embeddings.size() <= QUERIES) {
+      throw new IllegalArgumentException("Need more than " + QUERIES + " embeddings in " + file);
+    }
+    return embeddings;
+  }
+
+  /**
+   * Embeddings around a number of topic centroids, roughly in the value range of the Mistral
+   * embeddings.
+   */
+  private static List<float[]> generatedEmbeddings(int count, int dimensions) {
+    Random random = new Random(42);
+    float[][] centroids = new float[40][dimensions];
+    for (float[] centroid : centroids) {
+      for (int i = 0; i < dimensions; i++) {
+        centroid[i] = (float) (random.nextGaussian() * 3.0);
+      }
+    }
+    List<float[]> embeddings = new ArrayList<>(count);
+    for (int n = 0; n < count; n++) {
+      float[] centroid = centroids[random.nextInt(centroids.length)];
+      float[] embedding = new float[dimensions];
+      for (int i = 0; i < dimensions; i++) {
+        embedding[i] = centroid[i] + (float) (random.nextGaussian() * 1.5);
+      }
+      embeddings.add(embedding);
+    }
+    return embeddings;
+  }
+}
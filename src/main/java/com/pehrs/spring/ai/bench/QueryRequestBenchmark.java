@@ -0,0 +1,99 @@
+package com.pehrs.spring.ai.bench;
+
+import com.pehrs.spring.ai.vespa.VespaQueryTemplate;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+
+/**
+ * Compares building the /search/ request body with chained {@code String.replace} calls (the
+ * original implementation) against the pre-parsed {@link VespaQueryTemplate} rendering into a
+ * pooled buffer.
+ *
+ * <pre>
+ * bin/benchmark.sh QueryRequestBenchmark [embeddingSize]
+ * </pre>
+ */
+public class QueryRequestBenchmark {
+
+  private static final String LEGACY_TEMPLATE = """
+      {
+        "yql": "select {fields} from {docType} where {targetHits}nearestNeighbor({embeddingFieldName},{rankingInputName})",
+        "input": {
+          "query({rankingInputName})": [
+            {embedding}
+          ]
+        },
+        "ranking": "{rankingName}"
+      }""";
+
+  public static void main(String[] args) throws Exception {
+    int embeddingSize = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+
+    Random random = new Random(42);
+    List<Double> embedding = new ArrayList<>(embeddingSize);
+    for (int i = 0; i < embeddingSize; i++) {
+      embedding.add(random.nextGaussian() * 3.0);
+    }
+
+    MicroBenchmark.printHeader("request bytes");
+
+    MicroBenchmark.Result legacy = MicroBenchmark.run("String.replace", 2_000, 10_000, () -> {
+      String queryEmbeddingStr = embedding.stream().map(d -> "" + d)
+          .collect(Collectors.joining(","));
+      String yqlRequest = LEGACY_TEMPLATE.replace("{targetHits}", "{targetHits:10}");
+      yqlRequest = yqlRequest.replace("{rankingName}", "recommendation");
+      yqlRequest = yqlRequest.replace("{rankingInputName}", "q_embedding");
+      yqlRequest = yqlRequest.replace("{embeddingFieldName}", "embedding");
+      yqlRequest = yqlRequest.replace("{docType}", "embeddings");
+      yqlRequest = yqlRequest.replace("{fields}", "embedding, content");
+      yqlRequest = yqlRequest.replace("{embedding}", queryEmbeddingStr);
+      return yqlRequest.getBytes(Charset.defaultCharset()).length;
+    });
+    MicroBenchmark.print(legacy, legacy.sample());
+
+    VespaQueryTemplate template = VespaQueryTemplate.parse(
+        new ClassPathResource("/vespa-query.template").getContentAsString(
+            Charset.defaultCharset()),
+        Map.of("targetHits", "{targetHits:10}",
+            "hits", "10",
+            "rankingName", "recommendation",
+            "nearestNeighborInput", "q_embedding",
+            "nearestNeighborField", "embedding",
+            "docType", "embeddings",
+            "fields", "embedding, content",
+            "summary", "default",
+            "timeout", "5000ms"),
+        Set.of("input"));
+    DataBufferFactory bufferFactory = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+    VespaQueryTemplate.ValueWriter inputWriter = generator -> {
+      generator.writeStartObject();
+      generator.writeFieldName("query(q_embedding)");
+      generator.writeStartArray();
+      for (Double value : embedding) {
+        generator.writeNumber(value.doubleValue());
+      }
+      generator.writeEndArray();
+      generator.writeEndObject();
+    };
+    MicroBenchmark.Result rendered = MicroBenchmark.run("VespaQueryTemplate", 2_000, 10_000,
+        () -> {
+          DataBuffer buffer = template.render(bufferFactory,
+              Map.of("input", inputWriter), embeddingSize * 20);
+          int size = buffer.readableByteCount();
+          DataBufferUtils.release(buffer);
+          return size;
+        });
+    MicroBenchmark.print(rendered, rendered.sample());
+  }
+}
@@ -0,0 +1,106 @@
+package com.pehrs.spring.ai.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pehrs.spring.ai.vespa.TensorFormat;
+import com.pehrs.spring.ai.vespa.VespaQueryTemplate;
+import com.pehrs.spring.ai.vespa.VespaTensors;
+import com.pehrs.spring.ai.vespa.VespaVectorStore.VespaDoc;
+import com.pehrs.spring.ai.vespa.VespaVectorStore.VespaEmbedding;
+import com.pehrs.spring.ai.vespa.VespaVectorStore.VespaHexEmbedding;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+
+/**
+ * Compares payload size and serialization time of the {@code JSON} and {@code HEX} tensor
+ * formats for a /document/v1 put and for the query request, rendered from the query template as
+ * {@link com.pehrs.spring.ai.vespa.VespaVectorStore} does.
+ *
+ * <pre>
+ * bin/benchmark.sh TensorFormatBenchmark [embeddingSize]
+ * </pre>
+ */
+public class TensorFormatBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int embeddingSize = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    // Mistral embeddings are roughly in the [-10, 10] range
+    Random random = new Random(42);
+    List<Double> embedding = new ArrayList<>(embeddingSize);
+    for (int i = 0; i < embeddingSize; i++) {
+      embedding.add(random.nextGaussian() * 3.0);
+    }
+    String content = "Lorem ipsum dolor sit amet. ".repeat(40);
+
+    MicroBenchmark.printHeader("payload bytes");
+
+    MicroBenchmark.Result feedJson = MicroBenchmark.run("feed JSON", 2_000, 5_000, () -> {
+      Map<String, Object> fields = new HashMap<>();
+      fields.put("content", content);
+      fields.put("embedding", new VespaEmbedding(embedding));
+      return objectMapper.writeValueAsString(new VespaDoc(fields));
+    });
+    MicroBenchmark.print(feedJson, feedJson.sample().toString().length());
+
+    MicroBenchmark.Result feedHex = MicroBenchmark.run("feed HEX", 2_000, 5_000, () -> {
+      Map<String, Object> fields = new HashMap<>();
+      fields.put("content", content);
+      fields.put("embedding",
+          new VespaHexEmbedding(VespaTensors.toHex(VespaTensors.toFloats(embedding))));
+      return objectMapper.writeValueAsString(new VespaDoc(fields));
+    });
+    MicroBenchmark.print(feedHex, feedHex.sample().toString().length());
+
+    // The query embedding is written by VespaVectorStore into the rendered query template
+    VespaQueryTemplate template = VespaQueryTemplate.parse(
+        new ClassPathResource("/vespa-query.template").getContentAsString(
+            Charset.defaultCharset()),
+        Map.of("targetHits", "{targetHits:10}",
+            "hits", "10",
+            "rankingName", "recommendation",
+            "nearestNeighborInput", "q_embedding",
+            "nearestNeighborField", "embedding",
+            "docType", "embeddings",
+            "fields", "content",
+            "summary", "lean",
+            "timeout", "5000ms"),
+        Set.of("input"));
+    DataBufferFactory bufferFactory = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+    for (TensorFormat tensorFormat : TensorFormat.values()) {
+      VespaQueryTemplate.ValueWriter inputWriter = generator -> {
+        generator.writeStartObject();
+        generator.writeFieldName("query(q_embedding)");
+        generator.writeStartArray();
+        for (Double value : embedding) {
+          switch (tensorFormat) {
+            case JSON -> generator.writeNumber(value.doubleValue());
+            case HEX -> generator.writeNumber(value.floatValue());
+          }
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+      };
+      MicroBenchmark.Result query = MicroBenchmark.run("query " + tensorFormat, 2_000, 5_000,
+          () -> {
+            DataBuffer buffer = template.render(bufferFactory, Map.of("input", inputWriter),
+                embeddingSize * 20);
+            int size = buffer.readableByteCount();
+            DataBufferUtils.release(buffer);
+            return size;
+          });
+      MicroBenchmark.print(query, query.sample());
+    }
+  }
+}
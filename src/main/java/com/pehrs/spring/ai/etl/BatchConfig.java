@@ -1,30 +1,69 @@
 package com.pehrs.spring.ai.etl;
 
+import com.codahale.metrics.MetricRegistry;
+import com.pehrs.spring.ai.rss.ArticleTextExtractor;
+import com.pehrs.spring.ai.rss.HttpConditionalCache;
+import com.pehrs.spring.ai.rss.RssArticle;
 import com.pehrs.spring.ai.rss.RssXmlAiDocumentReader;
+import com.pehrs.spring.ai.vespa.VespaFeedException;
+import com.pehrs.spring.ai.vespa.VespaVectorStore;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.Map;
+import java.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.ai.document.Document;
 import org.springframework.batch.core.Job;
 import org.springframework.batch.core.Step;
+import org.springframework.batch.core.configuration.annotation.StepScope;
 import org.springframework.batch.core.job.builder.JobBuilder;
 import org.springframework.batch.core.launch.support.RunIdIncrementer;
+import org.springframework.batch.core.partition.support.Partitioner;
 import org.springframework.batch.core.repository.JobRepository;
 import org.springframework.batch.core.step.builder.StepBuilder;
+import org.springframework.batch.integration.async.AsyncItemProcessor;
+import org.springframework.batch.integration.async.AsyncItemWriter;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemProcessor;
 import org.springframework.batch.item.ItemReader;
 import org.springframework.batch.item.ItemWriter;
+import org.springframework.batch.item.support.CompositeItemProcessor;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.lang.Nullable;
+import org.springframework.retry.backoff.ExponentialBackOffPolicy;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 
+/**
+ * The ingest job. The {@code importDocsToVespa} step is partitioned with one partition per feed,
+ * and the partitions run the {@code importFeedToVespa} step on the {@code ingestTaskExecutor}.
+ * Within a partition the article text is extracted, split into chunks and near duplicate chunks
+ * are dropped on the {@code extractTaskExecutor} so this CPU heavy work is not limited to one core
+ * per feed.
+ *
+ * <p>The readers save their position in the job repository, so a failed run is restarted where it
+ * stopped, see {@link PopulateVespaVectorStore#ingestRunner}.
+ */
 @Configuration
 public class BatchConfig  {
 
-  @Bean
-  public ItemReader<Document> reader() throws ParserConfigurationException {
+  private static final Logger log = LoggerFactory.getLogger(BatchConfig.class);
+
+  static final String RSS_URL_KEY = "rssUrl";
 
+  static List<String> rssFeeds() {
     List<String> rssFeeds = List.of(
         "http://www.svt.se/nyheter/rss.xml"
     );
@@ -32,13 +71,112 @@ public class BatchConfig  {
     if(rssFeedsProp != null) {
       rssFeeds = Arrays.stream(rssFeedsProp.split(",")).toList();
     }
+    return rssFeeds;
+  }
+
+  @Bean
+  public Partitioner feedPartitioner() {
+    List<String> rssFeeds = rssFeeds();
     System.out.println("\n=========================\nLoading news from " + rssFeeds+"\n=========================\n");
-    return new RssXmlAiDocumentReader(rssFeeds);
+    return gridSize -> {
+      Map<String, ExecutionContext> partitions = new HashMap<>();
+      for (int i = 0; i < rssFeeds.size(); i++) {
+        ExecutionContext context = new ExecutionContext();
+        context.putString(RSS_URL_KEY, rssFeeds.get(i));
+        partitions.put("feed" + i, context);
+      }
+      return partitions;
+    };
+  }
+
+  /**
+   * The conditional GET cache of the readers, where the writer marks the articles it has stored.
+   * {@code null} when {@code rss.httpCache.path} is empty. Articles stored with another embedding
+   * layout are not skipped.
+   */
+  @Bean
+  public HttpConditionalCache httpCache(MetricRegistry metricRegistry,
+      VespaVectorStore vectorStore,
+      @Value("${rss.httpCache.path}") String httpCachePath) throws IOException {
+    return httpCachePath.isBlank() ? null
+        : new HttpConditionalCache(Path.of(httpCachePath), metricRegistry,
+            vectorStore.embeddingLayout());
+  }
+
+  @Bean
+  @StepScope
+  public RssXmlAiDocumentReader reader(MetricRegistry metricRegistry,
+      @Nullable HttpConditionalCache httpCache,
+      @Value("#{stepExecutionContext['" + RSS_URL_KEY + "']}") String rssUrl,
+      @Value("${rss.prefetch.concurrency}") int prefetchConcurrency,
+      @Value("${rss.prefetch.perHostConcurrency}") int perHostConcurrency,
+      @Value("${rss.prefetch.queueSize}") int queueSize) {
+    log.info("Reading " + rssUrl);
+    return new RssXmlAiDocumentReader(List.of(rssUrl), metricRegistry, httpCache,
+        prefetchConcurrency, perHostConcurrency, queueSize);
+  }
+
+  @Bean
+  public TaskExecutor ingestTaskExecutor(@Value("${ingest.partitionThreads}") int threads) {
+    ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
+    taskExecutor.setCorePoolSize(threads);
+    taskExecutor.setMaxPoolSize(threads);
+    taskExecutor.setThreadNamePrefix("ingest-");
+    return taskExecutor;
+  }
+
+  @Bean
+  public TaskExecutor extractTaskExecutor(@Value("${ingest.extractThreads}") int threads) {
+    ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
+    taskExecutor.setCorePoolSize(threads);
+    taskExecutor.setMaxPoolSize(threads);
+    taskExecutor.setThreadNamePrefix("extract-");
+    return taskExecutor;
+  }
+
+  @Bean
+  public AsyncItemProcessor<RssArticle, List<Document>> asyncProcessor(
+      MetricRegistry metricRegistry,
+      DocumentSplitter documentSplitter,
+      NearDuplicateFilter nearDuplicateFilter,
+      @Nullable HttpConditionalCache httpCache,
+      @Qualifier("extractTaskExecutor") TaskExecutor extractTaskExecutor,
+      @Value("${ingest.htmlFastPath}") boolean htmlFastPath,
+      @Value("${ingest.dedup.enabled}") boolean dedup) {
+    // Extract, split and filter on the same thread, no need to hand the documents over in between
+    List<ItemProcessor<?, ?>> delegates = new ArrayList<>();
+    delegates.add(new ArticleTextExtractor(metricRegistry, htmlFastPath));
+    delegates.add(documentSplitter);
+    if (dedup) {
+      delegates.add(nearDuplicateFilter);
+    }
+    CompositeItemProcessor<RssArticle, List<Document>> extractAndSplit =
+        new CompositeItemProcessor<>();
+    extractAndSplit.setDelegates(delegates);
+    AsyncItemProcessor<RssArticle, List<Document>> asyncProcessor = new AsyncItemProcessor<>();
+    asyncProcessor.setDelegate(article -> {
+      List<Document> chunks = extractAndSplit.process(article);
+      // Nothing to write (no text, or only near duplicates), so the writer never marks it
+      if (chunks == null && httpCache != null) {
+        httpCache.markStored(article.url());
+      }
+      return chunks;
+    });
+    asyncProcessor.setTaskExecutor(extractTaskExecutor);
+    return asyncProcessor;
+  }
+
+  @Bean
+  public AsyncItemWriter<List<Document>> asyncWriter(ItemWriter<List<Document>> writer) {
+    AsyncItemWriter<List<Document>> asyncWriter = new AsyncItemWriter<>();
+    asyncWriter.setDelegate(writer);
+    return asyncWriter;
   }
 
   @Bean
   public Job job1(
-      JobRepository jobRepository, JobCompletionNotificationListener listener, Step step1) {
+      JobRepository jobRepository, JobCompletionNotificationListener listener,
+      @Qualifier("importDocsToVespa") Step step1) {
     return new JobBuilder("job1", jobRepository)
         .incrementer(new RunIdIncrementer())
         .listener(listener)
@@ -49,14 +187,48 @@ public class BatchConfig  {
 
   @Bean
   public Step importDocsToVespa(JobRepository jobRepository,
-      PlatformTransactionManager transactionManager,
-      ItemReader<Document> reader,
-      ItemWriter<Document> writer) {
+      Partitioner feedPartitioner,
+      @Qualifier("importFeedToVespa") Step importFeedToVespa,
+      @Qualifier("ingestTaskExecutor") TaskExecutor ingestTaskExecutor,
+      @Value("${ingest.partitionThreads}") int partitionThreads) {
     return new StepBuilder("importDocsToVespa", jobRepository)
-        .<Document, Document> chunk(10, transactionManager)
+        .partitioner("importFeedToVespa", feedPartitioner)
+        .step(importFeedToVespa)
+        .gridSize(partitionThreads)
+        .taskExecutor(ingestTaskExecutor)
+        .build();
+  }
+
+  @Bean
+  public Step importFeedToVespa(JobRepository jobRepository,
+      PlatformTransactionManager transactionManager,
+      ItemReader<RssArticle> reader,
+      AsyncItemProcessor<RssArticle, List<Document>> asyncProcessor,
+      AsyncItemWriter<List<Document>> asyncWriter,
+      @Value("${ingest.retryLimit}") int retryLimit,
+      @Value("${ingest.skipLimit}") int skipLimit) {
+    ExponentialBackOffPolicy backOffPolicy = new ExponentialBackOffPolicy();
+    backOffPolicy.setInitialInterval(1000);
+    backOffPolicy.setMaxInterval(30_000);
+    return new StepBuilder("importFeedToVespa", jobRepository)
+        .<RssArticle, Future<List<Document>>> chunk(10, transactionManager)
         .reader(reader)
-        // .processor(processor())
-        .writer(writer)
+        .processor(asyncProcessor)
+        .writer(asyncWriter)
+        .faultTolerant()
+        // Ollama or Vespa timing out or being restarted
+        .retry(ResourceAccessException.class)
+        .retry(WebClientRequestException.class)
+        .retry(VespaFeedException.class)
+        .retryLimit(retryLimit)
+        .backOffPolicy(backOffPolicy)
+        // Give up on the articles that still fail, the rest of the chunk is written
+        .skip(VespaFeedException.class)
+        .skip(WebClientResponseException.class)
+        .skipLimit(skipLimit)
+        // Reuse the processed items when a chunk is retried or scanned for the item to skip. The
+        // near duplicate filter has already indexed their chunks.
+        .processorNonTransactional()
         .build();
   }
 
@@ -0,0 +1,120 @@
+package com.pehrs.spring.ai.etl;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.pehrs.spring.ai.vespa.VespaVectorStore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.ai.document.Document;
+import org.springframework.batch.item.ItemProcessor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Splits the documents of an article into chunks of at most {@code ingest.chunkSize} tokens,
+ * where consecutive chunks share {@code ingest.chunkOverlap} tokens. Like the
+ * {@code TokenTextSplitter} a chunk is cut after the last sentence in it, as long as that keeps
+ * at least {@link #MIN_CHUNK_SIZE_CHARS} characters.
+ *
+ * <p>The processor is stateless and the encoder is shared, so it runs on the extract threads of
+ * the {@code AsyncItemProcessor} right after the text extraction.
+ */
+@Component
+public class DocumentSplitter implements ItemProcessor<List<Document>, List<Document>> {
+
+  // Thread safe
+  private static final Encoding ENCODING =
+      Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+
+  static final int MIN_CHUNK_SIZE_CHARS = 350;
+  // Shorter chunks are dropped
+  static final int MIN_CHUNK_LENGTH_TO_EMBED = 5;
+  static final int MAX_CHUNKS = 10_000;
+
+  /**
+   * Metadata key holding the number of chunks the article was split into. The chunk ids of an
+   * article are {@link #chunkId(String, int)} of 0 up to this count, also when later stages drop
+   * some of the chunks.
+   */
+  static final String CHUNK_COUNT_METADATA_KEY = "chunkCount";
+
+  @Value("${ingest.chunkSize}")
+  int chunkSize;
+
+  @Value("${ingest.chunkOverlap}")
+  int chunkOverlap;
+
+  private final Histogram splitHistogram;
+  private final Histogram chunksHistogram;
+
+  public DocumentSplitter(MetricRegistry metricRegistry) {
+    this.splitHistogram = metricRegistry.histogram("split.document.ms");
+    this.chunksHistogram = metricRegistry.histogram("split.document.chunks");
+  }
+
+  @Override
+  public List<Document> process(List<Document> documents) {
+    List<Document> chunks = new ArrayList<>();
+    for (Document document : documents) {
+      long start = System.currentTimeMillis();
+      List<String> texts = split(document.getContent());
+      Object url = document.getMetadata().get(VespaVectorStore.URL_METADATA_KEY);
+      for (String text : texts) {
+        Map<String, Object> metadata = new HashMap<>(document.getMetadata());
+        chunks.add(url == null ? new Document(text, metadata)
+            : new Document(chunkId(url.toString(), chunks.size()), text, metadata));
+      }
+      splitHistogram.update(System.currentTimeMillis() - start);
+      chunksHistogram.update(texts.size());
+    }
+    for (Document chunk : chunks) {
+      chunk.getMetadata().put(CHUNK_COUNT_METADATA_KEY, chunks.size());
+    }
+    return chunks.isEmpty() ? null : chunks;
+  }
+
+  /**
+   * The splitter used to give every chunk a random id. Derive it from the article url and the
+   * position of the chunk instead, so the same chunk gets the same id on every run.
+   */
+  static String chunkId(String url, int chunkIndex) {
+    return VespaVectorStore.contentHash(url).substring(0, 32) + "-" + chunkIndex;
+  }
+
+  List<String> split(String text) {
+    List<String> chunks = new ArrayList<>();
+    if (text == null || text.isBlank()) {
+      return chunks;
+    }
+    List<Integer> tokens = ENCODING.encodeOrdinary(text);
+    int start = 0;
+    while (start < tokens.size() && chunks.size() < MAX_CHUNKS) {
+      int end = Math.min(start + chunkSize, tokens.size());
+      String chunk = ENCODING.decode(tokens.subList(start, end));
+      int consumed = end - start;
+      if (end < tokens.size()) {
+        int sentenceEnd = Math.max(Math.max(chunk.lastIndexOf('.'), chunk.lastIndexOf('?')),
+            Math.max(chunk.lastIndexOf('!'), chunk.lastIndexOf('\n')));
+        if (sentenceEnd + 1 >= MIN_CHUNK_SIZE_CHARS) {
+          chunk = chunk.substring(0, sentenceEnd + 1);
+          consumed = Math.max(1, ENCODING.encodeOrdinary(chunk).size());
+        }
+      }
+      String trimmed = chunk.replace(System.lineSeparator(), " ").trim();
+      if (trimmed.length() > MIN_CHUNK_LENGTH_TO_EMBED) {
+        chunks.add(trimmed);
+      }
+      if (end == tokens.size()) {
+        break;
+      }
+      // Step back to overlap with the previous chunk, but always move forward
+      start += consumed > chunkOverlap ? consumed - chunkOverlap : consumed;
+    }
+    return chunks;
+  }
+}
@@ -0,0 +1,329 @@
+package com.pehrs.spring.ai.etl;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.pehrs.spring.ai.rss.ArticleTextExtractor;
+import com.pehrs.spring.ai.rss.HttpConditionalCache;
+import com.pehrs.spring.ai.rss.RssArticle;
+import com.pehrs.spring.ai.rss.RssXmlAiDocumentReader;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+import org.springframework.batch.item.Chunk;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Long running alternative to the ingest job. Every feed is polled on its own interval and the
+ * items not seen before go through the same extract, split, dedup and write stages as in the job.
+ *
+ * <p>The stages are connected with bounded demand. When Vespa or the embedding model slows down
+ * the writes take longer, fewer articles are requested and polls are skipped while the pipeline
+ * is still busy with the items of the last poll.
+ *
+ * <p>Articles that fail to be written are kept with their chunks and written again every
+ * {@code ingest.daemon.retryInterval}, up to {@code ingest.retryLimit} times. After that they are
+ * forgotten, so a later poll that still finds them in the feed fetches them again. So are articles
+ * that fail to download.
+ *
+ * <p>Started with the {@code daemon} profile, which also serves the metrics over HTTP, see
+ * {@link IngestMetricsController}.
+ */
+@Component
+@ConditionalOnProperty(name = "ingest.daemon.enabled", havingValue = "true")
+public class IngestDaemon implements ApplicationRunner, DisposableBean {
+
+  private static final Logger log = LoggerFactory.getLogger(IngestDaemon.class);
+
+  private record QueuedItem(String url, long queuedAt) {
+
+  }
+
+  private record FetchedItem(QueuedItem item, RssArticle article) {
+
+  }
+
+  private record ExtractedItem(QueuedItem item, List<Document> chunks, int attempts) {
+
+  }
+
+  private final MetricRegistry metricRegistry;
+  private final DocumentSplitter documentSplitter;
+  private final NearDuplicateFilter nearDuplicateFilter;
+  private final VectorStoreDocumentWriter writer;
+  private final HttpConditionalCache httpCache;
+
+  @Value("${ingest.daemon.pollInterval}")
+  Duration pollInterval;
+
+  // Comma separated url=duration pairs, for feeds polled on another interval
+  @Value("${ingest.daemon.feedIntervals}")
+  String feedIntervals;
+
+  @Value("${ingest.daemon.maxSeenItems}")
+  int maxSeenItems;
+
+  @Value("${ingest.daemon.batchSize}")
+  int batchSize;
+
+  @Value("${ingest.daemon.retryInterval}")
+  Duration retryInterval;
+
+  @Value("${ingest.retryLimit}")
+  int retryLimit;
+
+  @Value("${ingest.htmlFastPath}")
+  boolean htmlFastPath;
+
+  @Value("${ingest.dedup.enabled}")
+  boolean dedup;
+
+  @Value("${ingest.extractThreads}")
+  int extractThreads;
+
+  @Value("${rss.prefetch.concurrency}")
+  int fetchConcurrency;
+
+  @Value("${rss.prefetch.perHostConcurrency}")
+  int perHostConcurrency;
+
+  // Item urls already queued, the oldest are forgotten first
+  private final Map<String, Boolean> seenItems = new LinkedHashMap<>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+      return size() > maxSeenItems;
+    }
+  };
+
+  // Extracted items whose write failed, waiting for the next retry
+  private final Queue<ExtractedItem> retryQueue = new ConcurrentLinkedQueue<>();
+
+  private final Meter polledMeter;
+  private final Meter skippedPollMeter;
+  private final Meter newItemMeter;
+  private final Meter writtenItemMeter;
+  private final Meter retriedItemMeter;
+  private final Meter droppedItemMeter;
+  private final Counter queuedCounter;
+  private final Histogram lagHistogram;
+
+  private RssXmlAiDocumentReader reader;
+  private Scheduler extractScheduler;
+  private Disposable subscription;
+
+  public IngestDaemon(MetricRegistry metricRegistry, DocumentSplitter documentSplitter,
+      NearDuplicateFilter nearDuplicateFilter, VectorStoreDocumentWriter writer,
+      @Nullable HttpConditionalCache httpCache) {
+    this.metricRegistry = metricRegistry;
+    this.documentSplitter = documentSplitter;
+    this.nearDuplicateFilter = nearDuplicateFilter;
+    this.writer = writer;
+    this.httpCache = httpCache;
+    this.polledMeter = metricRegistry.meter("daemon.polls");
+    this.skippedPollMeter = metricRegistry.meter("daemon.polls.skipped");
+    this.newItemMeter = metricRegistry.meter("daemon.items.new");
+    this.writtenItemMeter = metricRegistry.meter("daemon.items.written");
+    this.retriedItemMeter = metricRegistry.meter("daemon.items.retried");
+    // Not fetched, not extracted, or not written after ingest.retryLimit retries
+    this.droppedItemMeter = metricRegistry.meter("daemon.items.dropped");
+    // Items queued but not written yet
+    this.queuedCounter = metricRegistry.counter("daemon.queue.size");
+    // From the poll that found an item until its chunks are written
+    this.lagHistogram = metricRegistry.histogram("daemon.queue.lag.ms");
+  }
+
+  @Override
+  public void run(ApplicationArguments args) {
+    List<String> rssFeeds = BatchConfig.rssFeeds();
+    this.reader = new RssXmlAiDocumentReader(rssFeeds, metricRegistry, httpCache,
+        fetchConcurrency, perHostConcurrency, 1);
+    this.extractScheduler = Schedulers.newBoundedElastic(extractThreads,
+        Schedulers.DEFAULT_BOUNDED_ELASTIC_QUEUESIZE, "extract");
+    ArticleTextExtractor extractor = new ArticleTextExtractor(metricRegistry, htmlFastPath);
+    Map<String, Duration> intervals = intervals(rssFeeds);
+    log.info("Polling " + intervals);
+
+    Flux<ExtractedItem> extracted = Flux.fromIterable(rssFeeds)
+        .flatMap(rssUrl -> Flux.interval(Duration.ZERO, intervals.get(rssUrl))
+            // Don't poll again while the items of the last poll are still in the pipeline
+            .onBackpressureDrop(tick -> skippedPollMeter.mark())
+            .concatMap(tick -> poll(rssUrl), 1), rssFeeds.size())
+        .flatMap(item -> reader.fetchArticleOrError(item.url())
+            .map(article -> new FetchedItem(item, article))
+            .onErrorResume(ex -> {
+              log.warn("Failed to fetch " + item.url() + ": " + ex.getMessage());
+              // Fetched again if it is still in the feed on a later poll
+              forget(item.url());
+              droppedItemMeter.mark();
+              return Mono.empty();
+            })
+            // Failed or not modified
+            .switchIfEmpty(Mono.fromRunnable(queuedCounter::dec)), fetchConcurrency)
+        .flatMap(fetched -> Mono.fromCallable(() ->
+                new ExtractedItem(fetched.item(), extract(extractor, fetched.article()), 0))
+            .subscribeOn(extractScheduler)
+            // One article the extractor can not handle must not stop the daemon
+            .onErrorResume(ex -> {
+              log.warn("Failed to extract " + fetched.item().url() + ": " + ex.getMessage());
+              droppedItemMeter.mark();
+              queuedCounter.dec();
+              return Mono.empty();
+            }), extractThreads);
+    Flux<ExtractedItem> retried = Flux.interval(retryInterval, retryInterval)
+        .onBackpressureDrop()
+        .concatMap(tick -> Flux.fromIterable(drainRetryQueue()), 1);
+
+    this.subscription = Flux.merge(extracted, retried)
+        .bufferTimeout(batchSize, Duration.ofSeconds(5), true)
+        // One write at a time, the demand above follows how fast Vespa and the model keep up
+        .concatMap(this::write, 1)
+        .subscribe(
+            written -> log.debug("Wrote " + written + " articles"),
+            ex -> log.error("Ingest daemon stopped", ex));
+  }
+
+  private Flux<QueuedItem> poll(String rssUrl) {
+    polledMeter.mark();
+    long polledAt = System.currentTimeMillis();
+    return reader.fetchItemUrls(rssUrl)
+        .filter(this::isNew)
+        .map(url -> {
+          newItemMeter.mark();
+          queuedCounter.inc();
+          return new QueuedItem(url, polledAt);
+        })
+        .onErrorResume(ex -> {
+          log.warn("Failed to poll " + rssUrl + ": " + ex.getMessage());
+          return Flux.empty();
+        });
+  }
+
+  private synchronized boolean isNew(String url) {
+    return seenItems.put(url, Boolean.TRUE) == null;
+  }
+
+  private synchronized void forget(String url) {
+    seenItems.remove(url);
+  }
+
+  private synchronized void forget(List<ExtractedItem> items) {
+    items.forEach(item -> forget(item.item().url()));
+  }
+
+  private List<ExtractedItem> drainRetryQueue() {
+    List<ExtractedItem> items = new ArrayList<>();
+    for (ExtractedItem item = retryQueue.poll(); item != null; item = retryQueue.poll()) {
+      items.add(item);
+    }
+    retriedItemMeter.mark(items.size());
+    return items;
+  }
+
+  private void retryLater(List<ExtractedItem> items) {
+    List<ExtractedItem> dropped = new ArrayList<>();
+    for (ExtractedItem item : items) {
+      if (item.attempts() < retryLimit) {
+        retryQueue.add(new ExtractedItem(item.item(), item.chunks(), item.attempts() + 1));
+      } else {
+        dropped.add(item);
+      }
+    }
+    if (!dropped.isEmpty()) {
+      log.warn("Giving up on " + dropped.size() + " articles after " + retryLimit + " retries");
+      // Found again if they are still in the feed on a later poll
+      forget(dropped);
+      droppedItemMeter.mark(dropped.size());
+      queuedCounter.dec(dropped.size());
+    }
+  }
+
+  private List<Document> extract(ArticleTextExtractor extractor, RssArticle article) {
+    List<Document> documents = extractor.process(article);
+    List<Document> chunks = documents == null ? null : documentSplitter.process(documents);
+    if (chunks != null && dedup) {
+      chunks = nearDuplicateFilter.process(chunks);
+    }
+    return chunks == null ? List.of() : chunks;
+  }
+
+  private Mono<Integer> write(List<ExtractedItem> items) {
+    return Mono.fromCallable(() -> {
+          List<List<Document>> chunks = new ArrayList<>();
+          for (ExtractedItem item : items) {
+            if (!item.chunks().isEmpty()) {
+              chunks.add(item.chunks());
+            }
+          }
+          if (!chunks.isEmpty()) {
+            writer.write(new Chunk<>(chunks));
+          }
+          return items.size();
+        })
+        .subscribeOn(Schedulers.boundedElastic())
+        .doOnSuccess(written -> {
+          long now = System.currentTimeMillis();
+          for (ExtractedItem item : items) {
+            lagHistogram.update(now - item.item().queuedAt());
+          }
+          writtenItemMeter.mark(items.size());
+          queuedCounter.dec(items.size());
+          // The writer only marks the articles it got chunks of
+          if (httpCache != null) {
+            items.stream()
+                .filter(item -> item.chunks().isEmpty())
+                .forEach(item -> httpCache.markStored(item.item().url()));
+          }
+        })
+        .onErrorResume(ex -> {
+          log.warn("Failed to write " + items.size() + " articles: " + ex.getMessage());
+          retryLater(items);
+          return Mono.just(0);
+        });
+  }
+
+  private Map<String, Duration> intervals(List<String> rssFeeds) {
+    Map<String, Duration> intervals = new HashMap<>();
+    rssFeeds.forEach(rssUrl -> intervals.put(rssUrl, pollInterval));
+    if (!feedIntervals.isBlank()) {
+      for (String feedInterval : feedIntervals.split(",")) {
+        int separator = feedInterval.lastIndexOf('=');
+        intervals.put(feedInterval.substring(0, separator).trim(),
+            Duration.parse(feedInterval.substring(separator + 1).trim()));
+      }
+    }
+    return intervals;
+  }
+
+  @Override
+  public void destroy() {
+    if (subscription != null) {
+      subscription.dispose();
+    }
+    if (reader != null) {
+      reader.close();
+    }
+    if (extractScheduler != null) {
+      extractScheduler.dispose();
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package com.pehrs.spring.ai.etl;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Serves the ingest metrics of the daemon mode as JSON, among them the queue lag
+ * ({@code daemon.queue.lag.ms}, {@code daemon.queue.size}) and the items per second
+ * ({@code daemon.items.written}).
+ *
+ * <pre>
+ * curl localhost:8083/metrics
+ * </pre>
+ */
+@RestController
+@ConditionalOnProperty(name = "ingest.daemon.enabled", havingValue = "true")
+public class IngestMetricsController {
+
+  private final MetricRegistry metricRegistry;
+
+  public IngestMetricsController(MetricRegistry metricRegistry) {
+    this.metricRegistry = metricRegistry;
+  }
+
+  @GetMapping("/metrics")
+  public Map<String, Object> metrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    for (Map.Entry<String, Gauge> entry : metricRegistry.getGauges().entrySet()) {
+      metrics.put(entry.getKey(), entry.getValue().getValue());
+    }
+    for (Map.Entry<String, Counter> entry : metricRegistry.getCounters().entrySet()) {
+      metrics.put(entry.getKey(), entry.getValue().getCount());
+    }
+    for (Map.Entry<String, Meter> entry : metricRegistry.getMeters().entrySet()) {
+      Meter meter = entry.getValue();
+      metrics.put(entry.getKey(), Map.of(
+          "count", meter.getCount(),
+          "rate1m", meter.getOneMinuteRate(),
+          "rate5m", meter.getFiveMinuteRate(),
+          "meanRate", meter.getMeanRate()));
+    }
+    for (Map.Entry<String, Histogram> entry : metricRegistry.getHistograms().entrySet()) {
+      Snapshot snapshot = entry.getValue().getSnapshot();
+      metrics.put(entry.getKey(), Map.of(
+          "count", entry.getValue().getCount(),
+          "mean", snapshot.getMean(),
+          "p50", snapshot.getMedian(),
+          "p95", snapshot.get95thPercentile(),
+          "p99", snapshot.get99thPercentile(),
+          "max", snapshot.getMax()));
+    }
+    return metrics;
+  }
+}
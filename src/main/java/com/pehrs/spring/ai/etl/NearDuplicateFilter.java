@@ -0,0 +1,192 @@
+package com.pehrs.spring.ai.etl;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+import org.springframework.batch.item.ItemProcessor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Drops chunks that are near duplicates of a chunk seen earlier in the run, such as the same wire
+ * story syndicated to several sites or an article that is in more than one feed. This runs after
+ * the splitting, so duplicates are never embedded. A dropped chunk that was stored on an earlier
+ * run is kept, see {@link VectorStoreDocumentWriter}.
+ *
+ * <p>Every chunk gets a 64 bit SimHash of its word 3-shingles. Two chunks are near duplicates when
+ * their hashes differ in at most {@code (1 - ingest.dedup.similarity) * 64} bits. The hashes are
+ * indexed by splitting them into one more band than the allowed distance, as two hashes within the
+ * distance must then have at least one band in common. The index is kept in memory and cleared
+ * when it holds {@code ingest.dedup.maxEntries} hashes.
+ *
+ * <p>The index remembers which chunk id added each hash, so a chunk that is processed again (a
+ * retried chunk of the batch step, a retried write of the ingest daemon) is not a duplicate of
+ * itself.
+ */
+@Component
+public class NearDuplicateFilter implements ItemProcessor<List<Document>, List<Document>> {
+
+  private static final Logger log = LoggerFactory.getLogger(NearDuplicateFilter.class);
+
+  private static final int SHINGLE_WORDS = 3;
+
+  private final int maxDistance;
+  private final int bands;
+  private final int bandBits;
+  private final int maxEntries;
+  private record IndexedHash(long hash, long idHash) {
+
+  }
+
+  // Band key (band index and band bits) to the hashes with those bits
+  private final Map<Long, List<IndexedHash>> index = new HashMap<>();
+  private int entries = 0;
+
+  private final Meter duplicateMeter;
+  private final Meter uniqueMeter;
+
+  public NearDuplicateFilter(MetricRegistry metricRegistry,
+      @Value("${ingest.dedup.similarity}") double similarity,
+      @Value("${ingest.dedup.maxEntries}") int maxEntries) {
+    this.maxDistance = (int) Math.floor((1.0 - similarity) * Long.SIZE);
+    this.bands = Math.min(this.maxDistance + 1, Long.SIZE);
+    this.bandBits = Long.SIZE / this.bands;
+    this.maxEntries = maxEntries;
+    this.duplicateMeter = metricRegistry.meter("chunks.duplicate");
+    this.uniqueMeter = metricRegistry.meter("chunks.unique");
+    metricRegistry.gauge("dedup.index.size", () -> (Gauge<Integer>) this::size);
+  }
+
+  @Override
+  public List<Document> process(List<Document> chunks) {
+    List<Document> unique = new ArrayList<>(chunks.size());
+    for (Document chunk : chunks) {
+      if (addIfUnique(simHash(chunk.getContent()), idHash(chunk.getId()))) {
+        uniqueMeter.mark();
+        unique.add(chunk);
+      } else {
+        duplicateMeter.mark();
+      }
+    }
+    return unique.isEmpty() ? null : unique;
+  }
+
+  public synchronized int size() {
+    return entries;
+  }
+
+  /**
+   * @return false if a near duplicate of the hash is already indexed by another chunk, otherwise
+   *     the hash is added (unless this chunk added it before)
+   */
+  synchronized boolean addIfUnique(long hash, long idHash) {
+    for (int band = 0; band < bands; band++) {
+      List<IndexedHash> candidates = index.get(bandKey(hash, band));
+      if (candidates == null) {
+        continue;
+      }
+      for (IndexedHash candidate : candidates) {
+        if (Long.bitCount(candidate.hash() ^ hash) <= maxDistance) {
+          return candidate.idHash() == idHash;
+        }
+      }
+    }
+    if (entries >= maxEntries) {
+      log.info(String.format("Near duplicate index is full with %d chunks, clearing it", entries));
+      index.clear();
+      entries = 0;
+    }
+    IndexedHash indexed = new IndexedHash(hash, idHash);
+    for (int band = 0; band < bands; band++) {
+      index.computeIfAbsent(bandKey(hash, band), key -> new ArrayList<>(1)).add(indexed);
+    }
+    entries++;
+    return true;
+  }
+
+  private long bandKey(long hash, int band) {
+    // The last band takes the remaining bits
+    int shift = band * bandBits;
+    int bits = band == bands - 1 ? Long.SIZE - shift : bandBits;
+    long mask = bits == Long.SIZE ? -1L : (1L << bits) - 1;
+    return ((long) band << 58) ^ ((hash >>> shift) & mask) * 0x9E3779B97F4A7C15L;
+  }
+
+  // FNV-1a of the chunk id, 64 bits are plenty to tell the chunks of a run apart
+  static long idHash(String id) {
+    long hash = 0xCBF29CE484222325L;
+    for (int i = 0; i < id.length(); i++) {
+      hash = (hash ^ id.charAt(i)) * 0x100000001B3L;
+    }
+    return hash;
+  }
+
+  /**
+   * The SimHash of the lower cased word 3-shingles of the text, or of the words if there are
+   * fewer than three.
+   */
+  static long simHash(String text) {
+    int[] weights = new int[Long.SIZE];
+    long[] words = new long[SHINGLE_WORDS];
+    int wordCount = 0;
+    long wordHash = 0;
+    boolean inWord = false;
+    for (int i = 0; i <= text.length(); i++) {
+      char c = i < text.length() ? text.charAt(i) : ' ';
+      if (Character.isLetterOrDigit(c)) {
+        if (!inWord) {
+          wordHash = 0xCBF29CE484222325L;
+          inWord = true;
+        }
+        // FNV-1a
+        wordHash = (wordHash ^ Character.toLowerCase(c)) * 0x100000001B3L;
+      } else if (inWord) {
+        inWord = false;
+        words[wordCount % SHINGLE_WORDS] = wordHash;
+        wordCount++;
+        if (wordCount >= SHINGLE_WORDS) {
+          long shingle = 0;
+          for (int w = wordCount - SHINGLE_WORDS; w < wordCount; w++) {
+            shingle = shingle * 31 + words[w % SHINGLE_WORDS];
+          }
+          addWeights(weights, mix(shingle));
+        }
+      }
+    }
+    if (wordCount < SHINGLE_WORDS) {
+      for (int w = 0; w < wordCount; w++) {
+        addWeights(weights, mix(words[w]));
+      }
+    }
+    long simHash = 0;
+    for (int bit = 0; bit < Long.SIZE; bit++) {
+      if (weights[bit] > 0) {
+        simHash |= 1L << bit;
+      }
+    }
+    return simHash;
+  }
+
+  private static void addWeights(int[] weights, long hash) {
+    for (int bit = 0; bit < Long.SIZE; bit++) {
+      weights[bit] += ((hash >>> bit) & 1) == 1 ? 1 : -1;
+    }
+  }
+
+  // The MurmurHash3 finalizer, spreads the shingle hash over all bits
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB93FE2C7BB1BL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
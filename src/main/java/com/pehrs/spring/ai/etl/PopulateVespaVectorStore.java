@@ -7,10 +7,25 @@ import com.pehrs.spring.ai.util.ConsoleTableReporter;
 import com.pehrs.spring.ai.vespa.VespaConfig;
 import com.pehrs.spring.ai.vespa.VespaVectorStore;
 import java.io.IOException;
+import java.time.LocalDateTime;
 import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.ai.embedding.EmbeddingClient;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobInstance;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.JobParametersBuilder;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.explore.JobExplorer;
+import org.springframework.batch.core.launch.JobLauncher;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
@@ -21,6 +36,8 @@ import reactor.core.publisher.Hooks;
 @ComponentScan({"com.pehrs.spring.ai.etl", "com.pehrs.spring.ai.vespa"})
 public class PopulateVespaVectorStore {
 
+  private static final Logger log = LoggerFactory.getLogger(PopulateVespaVectorStore.class);
+
   public static void main(String[] args) throws Exception {
 
     Hooks.enableAutomaticContextPropagation();
@@ -28,7 +45,52 @@ public class PopulateVespaVectorStore {
     SpringApplication app = new SpringApplication(PopulateVespaVectorStore.class);
     app.setWebApplicationType(WebApplicationType.NONE);
     ApplicationContext ctx = app.run(args);
-    SpringApplication.exit(ctx);
+    if (!ctx.getEnvironment().getProperty("ingest.daemon.enabled", Boolean.class, false)) {
+      SpringApplication.exit(ctx);
+    }
+  }
+
+  /**
+   * Runs the ingest job. A failed (or crashed) previous run is restarted with the same parameters
+   * so the readers resume from their saved position, otherwise a new run is started.
+   */
+  @Bean
+  @ConditionalOnProperty(name = "ingest.daemon.enabled", havingValue = "false")
+  public ApplicationRunner ingestRunner(JobLauncher jobLauncher, JobExplorer jobExplorer,
+      JobRepository jobRepository, Job job1) {
+    return args -> {
+      JobInstance lastInstance = jobExplorer.getLastJobInstance(job1.getName());
+      JobExecution lastExecution =
+          lastInstance == null ? null : jobExplorer.getLastJobExecution(lastInstance);
+      JobParameters parameters;
+      if (lastExecution != null && lastExecution.getStatus().isRunning()) {
+        // Nothing else runs the job, so this is what is left of a crashed run
+        markFailed(jobRepository, lastExecution);
+      }
+      if (lastExecution != null && (lastExecution.getStatus() == BatchStatus.FAILED
+          || lastExecution.getStatus() == BatchStatus.STOPPED)) {
+        log.info("Restarting " + job1.getName() + " " + lastExecution.getJobParameters());
+        parameters = lastExecution.getJobParameters();
+      } else {
+        parameters = new JobParametersBuilder(jobExplorer).getNextJobParameters(job1)
+            .toJobParameters();
+      }
+      jobLauncher.run(job1, parameters);
+    };
+  }
+
+  private static void markFailed(JobRepository jobRepository, JobExecution jobExecution) {
+    LocalDateTime now = LocalDateTime.now();
+    for (StepExecution stepExecution : jobExecution.getStepExecutions()) {
+      if (stepExecution.getStatus().isRunning()) {
+        stepExecution.setStatus(BatchStatus.FAILED);
+        stepExecution.setEndTime(now);
+        jobRepository.update(stepExecution);
+      }
+    }
+    jobExecution.setStatus(BatchStatus.FAILED);
+    jobExecution.setEndTime(now);
+    jobRepository.update(jobExecution);
   }
 
   @Bean
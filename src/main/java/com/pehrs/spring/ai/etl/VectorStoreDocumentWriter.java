@@ -1,27 +1,133 @@
 package com.pehrs.spring.ai.etl;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.pehrs.spring.ai.rss.HttpConditionalCache;
 import com.pehrs.spring.ai.vespa.VespaVectorStore;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.ai.document.Document;
-import org.springframework.ai.transformer.splitter.TextSplitter;
-import org.springframework.ai.transformer.splitter.TokenTextSplitter;
 import org.springframework.batch.item.Chunk;
 import org.springframework.batch.item.ItemWriter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+/**
+ * Writes the chunks of a chunk of articles. Each item holds all the chunks of one article, as
+ * split by the {@link DocumentSplitter}. Once written the articles are marked stored in the HTTP
+ * cache, so they are not extracted again while they are not modified.
+ */
 @Component
-public class VectorStoreDocumentWriter implements ItemWriter<Document> {
+public class VectorStoreDocumentWriter implements ItemWriter<List<Document>> {
+
+  private static final Logger log = LoggerFactory.getLogger(VectorStoreDocumentWriter.class);
 
   @Autowired
   VespaVectorStore vectorStore;
 
+  // Skip chunks that are already stored with the same content
+  @Value("${ingest.incremental}")
+  boolean incremental;
+
+  // Null when the HTTP cache is disabled
+  @Autowired(required = false)
+  HttpConditionalCache httpCache;
+
+  private final Meter newMeter;
+  private final Meter changedMeter;
+  private final Meter skippedMeter;
+  private final Meter removedMeter;
+
+  public VectorStoreDocumentWriter(MetricRegistry metricRegistry) {
+    this.newMeter = metricRegistry.meter("chunks.new");
+    this.changedMeter = metricRegistry.meter("chunks.changed");
+    this.skippedMeter = metricRegistry.meter("chunks.skipped");
+    this.removedMeter = metricRegistry.meter("chunks.removed");
+  }
+
   @Override
-  public void write(Chunk<? extends Document> chunk) throws Exception {
-    TextSplitter textSplitter = new TokenTextSplitter();
-    List<Document> splitDocuments =
-        textSplitter.apply(chunk.getItems().stream().collect(Collectors.toList()));
-    vectorStore.add(splitDocuments);
+  public void write(Chunk<? extends List<Document>> chunk) throws Exception {
+    List<Document> splitDocuments = chunk.getItems().stream()
+        .flatMap(List::stream)
+        .collect(Collectors.toList());
+    if (!incremental) {
+      vectorStore.add(splitDocuments);
+    } else {
+      vectorStore.add(changedChunks(splitDocuments));
+    }
+    if (httpCache != null) {
+      urls(splitDocuments).forEach(httpCache::markStored);
+    }
+  }
+
+  private static Set<String> urls(List<Document> documents) {
+    return documents.stream()
+        .map(document -> document.getMetadata().get(VespaVectorStore.URL_METADATA_KEY))
+        .filter(url -> url != null)
+        .map(Object::toString)
+        .collect(Collectors.toSet());
+  }
+
+  /**
+   * Drops the chunks that are stored with the same content hash and removes stored chunks of the
+   * articles that are no longer produced by the splitter. Which chunks the splitter produced comes
+   * from their chunk count, not from the incoming chunks, as the {@link NearDuplicateFilter} may
+   * have dropped some of them. Those stay stored.
+   */
+  private List<Document> changedChunks(List<Document> documents) {
+    Map<String, String> storedHashes = vectorStore.getContentHashes(urls(documents));
+
+    List<Document> changed = new ArrayList<>();
+    Set<String> ids = new HashSet<>();
+    for (Document document : documents) {
+      if (!ids.contains(document.getId())) {
+        ids.addAll(splitIds(document));
+      }
+      String storedHash = storedHashes.get(document.getId());
+      if (storedHash == null) {
+        newMeter.mark();
+        changed.add(document);
+      } else if (!storedHash.equals(vectorStore.chunkHash(document.getContent()))) {
+        changedMeter.mark();
+        changed.add(document);
+      } else {
+        skippedMeter.mark();
+      }
+    }
+
+    List<String> stale = storedHashes.keySet().stream()
+        .filter(id -> !ids.contains(id))
+        .toList();
+    if (!stale.isEmpty()) {
+      // Failed removals go to the retry and skip policy of the step like failed writes
+      vectorStore.deleteOrThrow(stale);
+      removedMeter.mark(stale.size());
+    }
+    log.info(String.format("%d of %d chunks changed, %d stale chunks removed",
+        changed.size(), documents.size(), stale.size()));
+    return changed;
+  }
+
+  /**
+   * The ids of all chunks the splitter produced for the article of the document.
+   */
+  private static List<String> splitIds(Document document) {
+    Object url = document.getMetadata().get(VespaVectorStore.URL_METADATA_KEY);
+    Object chunkCount = document.getMetadata().get(DocumentSplitter.CHUNK_COUNT_METADATA_KEY);
+    if (url == null || !(chunkCount instanceof Integer count)) {
+      return List.of(document.getId());
+    }
+    List<String> ids = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      ids.add(DocumentSplitter.chunkId(url.toString(), i));
+    }
+    return ids;
   }
 }
@@ -0,0 +1,71 @@
+package com.pehrs.spring.ai.rss;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.pehrs.spring.ai.vespa.VespaVectorStore;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.reader.tika.TikaDocumentReader;
+import org.springframework.batch.item.ItemProcessor;
+import org.springframework.core.io.ByteArrayResource;
+
+/**
+ * Extracts the text of a downloaded article. HTML pages go through the {@link HtmlTextExtractor}
+ * when {@code htmlFastPath} is set, everything else through Tika. Extraction is CPU heavy, so
+ * this runs in an {@code AsyncItemProcessor} on its own thread pool.
+ */
+public class ArticleTextExtractor implements ItemProcessor<RssArticle, List<Document>> {
+
+  private static final Logger log = LoggerFactory.getLogger(ArticleTextExtractor.class);
+
+  private final boolean htmlFastPath;
+  private final ThreadLocal<HtmlTextExtractor> htmlTextExtractor =
+      ThreadLocal.withInitial(HtmlTextExtractor::new);
+  private final Histogram extractHistogram;
+  private final Meter htmlMeter;
+  private final Meter tikaMeter;
+
+  public ArticleTextExtractor(MetricRegistry metricRegistry, boolean htmlFastPath) {
+    this.htmlFastPath = htmlFastPath;
+    this.extractHistogram = metricRegistry.histogram("extract.article.ms");
+    this.htmlMeter = metricRegistry.meter("extract.html");
+    this.tikaMeter = metricRegistry.meter("extract.tika");
+  }
+
+  @Override
+  public List<Document> process(RssArticle article) {
+    long start = System.currentTimeMillis();
+    List<Document> documents;
+    try {
+      documents = htmlFastPath && HtmlTextExtractor.isHtml(article.contentType())
+          ? extractHtml(article)
+          : extractTika(article);
+    } catch (RuntimeException ex) {
+      // Let's skip to the next article...
+      log.debug("Failed to extract " + article.url() + ": " + ex.getMessage());
+      return null;
+    }
+    // Remember where the chunks came from so they can be removed per article later on
+    documents.forEach(document ->
+        document.getMetadata().put(VespaVectorStore.URL_METADATA_KEY, article.url()));
+    extractHistogram.update(System.currentTimeMillis() - start);
+    // Nothing to write for an article without text
+    return documents.isEmpty() ? null : documents;
+  }
+
+  private List<Document> extractHtml(RssArticle article) {
+    htmlMeter.mark();
+    String text = htmlTextExtractor.get().extract(article.body(), article.contentType());
+    return text.isEmpty() ? List.of() : List.of(new Document(text));
+  }
+
+  private List<Document> extractTika(RssArticle article) {
+    tikaMeter.mark();
+    TikaDocumentReader documentReader =
+        new TikaDocumentReader(new ByteArrayResource(article.body(), article.url()));
+    return documentReader.get();
+  }
+}
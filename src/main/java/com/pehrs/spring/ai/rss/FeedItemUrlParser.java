@@ -0,0 +1,171 @@
+package com.pehrs.spring.ai.rss;
+
+import com.fasterxml.aalto.AsyncByteBufferFeeder;
+import com.fasterxml.aalto.AsyncXMLStreamReader;
+import com.fasterxml.aalto.stax.InputFactoryImpl;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+
+/**
+ * Incremental parser that pulls the article urls out of an RSS 2.0, RSS 1.0 or Atom feed.
+ *
+ * <p>The bytes are fed to a non-blocking StAX parser as they arrive, and the url of an item is
+ * handed out as soon as the end of the item has been parsed, so the feed is never held in memory
+ * as a whole. The url of an RSS item is its {@code link}, or its {@code guid} if it has no link.
+ * The url of an Atom entry is the {@code href} of its alternate {@code link}, or its {@code id}.
+ */
+public class FeedItemUrlParser {
+
+  private enum Field {LINK, GUID}
+
+  private final AsyncXMLStreamReader<AsyncByteBufferFeeder> parser =
+      new InputFactoryImpl().createAsyncForByteBuffer();
+  private final StringBuilder text = new StringBuilder();
+
+  private int depth = 0;
+  // Depth of the current item or entry element, -1 when outside of one
+  private int itemDepth = -1;
+  private Field field;
+  private String link;
+  private String guid;
+
+  /**
+   * Parses the item urls of a feed response body. Every buffer is released once parsed.
+   */
+  public static Flux<String> itemUrls(Flux<DataBuffer> body) {
+    return Flux.defer(() -> {
+      FeedItemUrlParser itemUrlParser = new FeedItemUrlParser();
+      return body
+          .concatMapIterable(buffer -> {
+            try {
+              return itemUrlParser.feed(buffer);
+            } finally {
+              DataBufferUtils.release(buffer);
+            }
+          })
+          .concatWith(Flux.defer(() -> Flux.fromIterable(itemUrlParser.endOfInput())));
+    });
+  }
+
+  /**
+   * @return the urls of the items that ended in this part of the feed
+   */
+  public List<String> feed(DataBuffer buffer) {
+    List<String> urls = new ArrayList<>();
+    try (DataBuffer.ByteBufferIterator byteBuffers = buffer.readableByteBuffers()) {
+      while (byteBuffers.hasNext()) {
+        parse(byteBuffers.next(), urls);
+      }
+    }
+    return urls;
+  }
+
+  /**
+   * @return the urls of the items that ended in this part of the feed
+   */
+  public List<String> feed(ByteBuffer bytes) {
+    List<String> urls = new ArrayList<>();
+    parse(bytes, urls);
+    return urls;
+  }
+
+  /**
+   * Signals that the whole feed has been fed.
+   *
+   * @return the urls of the items that ended in the last part of the feed
+   */
+  public List<String> endOfInput() {
+    List<String> urls = new ArrayList<>();
+    this.parser.getInputFeeder().endOfInput();
+    parse(null, urls);
+    return urls;
+  }
+
+  private void parse(ByteBuffer bytes, List<String> urls) {
+    try {
+      if (bytes != null) {
+        this.parser.getInputFeeder().feedInput(bytes);
+      }
+      while (this.parser.hasNext()) {
+        switch (this.parser.next()) {
+          case AsyncXMLStreamReader.EVENT_INCOMPLETE:
+            return;
+          case XMLStreamConstants.START_ELEMENT:
+            startElement();
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+            if (this.field != null) {
+              this.text.append(this.parser.getTextCharacters(), this.parser.getTextStart(),
+                  this.parser.getTextLength());
+            }
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            endElement(urls);
+            break;
+          default:
+            break;
+        }
+      }
+    } catch (XMLStreamException e) {
+      throw new IllegalArgumentException("Not a valid feed: " + e.getMessage(), e);
+    }
+  }
+
+  private void startElement() {
+    this.depth++;
+    String name = this.parser.getLocalName();
+    if (this.itemDepth < 0) {
+      if (name.equals("item") || name.equals("entry")) {
+        this.itemDepth = this.depth;
+        this.link = null;
+        this.guid = null;
+      }
+      return;
+    }
+    if (this.depth != this.itemDepth + 1) {
+      return;
+    }
+    if (name.equals("link")) {
+      String href = this.parser.getAttributeValue(null, "href");
+      if (href == null) {
+        this.field = Field.LINK;
+      } else if (this.link == null) {
+        String rel = this.parser.getAttributeValue(null, "rel");
+        if (rel == null || rel.equals("alternate")) {
+          this.link = href.trim();
+        }
+      }
+    } else if (name.equals("guid") || name.equals("id")) {
+      this.field = Field.GUID;
+    }
+    this.text.setLength(0);
+  }
+
+  private void endElement(List<String> urls) {
+    if (this.field != null && this.depth == this.itemDepth + 1) {
+      String value = this.text.toString().trim();
+      if (!value.isEmpty()) {
+        if (this.field == Field.LINK && this.link == null) {
+          this.link = value;
+        } else if (this.field == Field.GUID && this.guid == null) {
+          this.guid = value;
+        }
+      }
+      this.field = null;
+    } else if (this.depth == this.itemDepth) {
+      String url = this.link != null ? this.link : this.guid;
+      if (url != null) {
+        urls.add(url);
+      }
+      this.itemDepth = -1;
+    }
+    this.depth--;
+  }
+}
@@ -0,0 +1,379 @@
+package com.pehrs.spring.ai.rss;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single pass HTML to text converter for news pages. The page is decoded and scanned in small
+ * buffers without building a DOM. Markup is dropped, entities are decoded, whitespace is collapsed
+ * and block elements end a line. The content of boilerplate elements such as {@code nav},
+ * {@code footer}, {@code script} and {@code style} is skipped, as is the {@code head}. A
+ * {@code header} is only skipped outside of {@code article} and {@code main}, where it holds the
+ * headline of the article rather than the site banner.
+ *
+ * <p>Not thread safe, use one instance per thread (or per page).
+ */
+public class HtmlTextExtractor {
+
+  // Not form, some sites (ASP.NET WebForms) wrap the whole body in one
+  private static final Set<String> SKIPPED_ELEMENTS = Set.of(
+      "head", "nav", "footer", "aside", "button", "select", "noscript", "template", "iframe",
+      "svg", "menu", "dialog");
+
+  // Skipped outside of the CONTENT_ELEMENTS only
+  private static final String HEADER_ELEMENT = "header";
+
+  private static final Set<String> CONTENT_ELEMENTS = Set.of("article", "main");
+
+  // Elements with raw text content, that is no markup until the end tag
+  private static final Set<String> RAW_TEXT_ELEMENTS = Set.of("script", "style");
+
+  private static final Set<String> BLOCK_ELEMENTS = Set.of(
+      "p", "div", "br", "li", "ul", "ol", "dl", "dt", "dd", "h1", "h2", "h3", "h4", "h5", "h6",
+      "tr", "table", "section", "article", "main", "blockquote", "pre", "hr", "figcaption",
+      "address", "summary", "details");
+
+  private static final Map<String, String> ENTITIES = Map.ofEntries(
+      Map.entry("amp", "&"), Map.entry("lt", "<"), Map.entry("gt", ">"),
+      Map.entry("quot", "\""), Map.entry("apos", "'"), Map.entry("nbsp", " "),
+      Map.entry("shy", ""), Map.entry("ndash", "\u2013"), Map.entry("mdash", "\u2014"),
+      Map.entry("hellip", "\u2026"), Map.entry("lsquo", "\u2018"), Map.entry("rsquo", "\u2019"),
+      Map.entry("ldquo", "\u201C"), Map.entry("rdquo", "\u201D"), Map.entry("laquo", "\u00AB"),
+      Map.entry("raquo", "\u00BB"), Map.entry("copy", "\u00A9"), Map.entry("euro", "\u20AC"),
+      Map.entry("aring", "\u00E5"), Map.entry("Aring", "\u00C5"), Map.entry("auml", "\u00E4"),
+      Map.entry("Auml", "\u00C4"), Map.entry("ouml", "\u00F6"), Map.entry("Ouml", "\u00D6"),
+      Map.entry("uuml", "\u00FC"), Map.entry("Uuml", "\u00DC"), Map.entry("eacute", "\u00E9"),
+      Map.entry("Eacute", "\u00C9"), Map.entry("egrave", "\u00E8"), Map.entry("oslash", "\u00F8"),
+      Map.entry("Oslash", "\u00D8"), Map.entry("aelig", "\u00E6"), Map.entry("AElig", "\u00C6"),
+      Map.entry("szlig", "\u00DF"));
+
+  private static final int MAX_ENTITY_LENGTH = 10;
+  private static final int SNIFF_BYTES = 1024;
+  private static final Pattern CHARSET_PATTERN =
+      Pattern.compile("charset\\s*=\\s*[\"']?([A-Za-z0-9_\\-:.]+)", Pattern.CASE_INSENSITIVE);
+
+  private enum State {TEXT, TAG_OPEN, TAG_NAME, TAG_ATTRIBUTES, QUOTED, COMMENT, DECLARATION,
+    RAW_TEXT, ENTITY}
+
+  private final char[] buffer = new char[8 * 1024];
+  private final StringBuilder tagName = new StringBuilder();
+  private final StringBuilder entity = new StringBuilder();
+
+  private StringBuilder text;
+  private State state;
+  private boolean endTag;
+  private boolean selfClosing;
+  private char quote;
+  // Matched part of "-->" or of the raw text end tag
+  private int matched;
+  private String rawTextElement;
+  // The boilerplate element being skipped and how deeply it is nested in itself
+  private String skippedElement;
+  private int skippedDepth;
+  // How deeply the current position is nested in CONTENT_ELEMENTS
+  private int contentDepth;
+
+  /**
+   * @return whether the content type is handled by this extractor
+   */
+  public static boolean isHtml(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String mimeType = contentType.toLowerCase(Locale.ROOT);
+    return mimeType.startsWith("text/html") || mimeType.startsWith("application/xhtml+xml");
+  }
+
+  /**
+   * The charset of the content type header, or of the meta tags at the start of the page, or
+   * UTF-8.
+   */
+  static Charset charset(String contentType, byte[] body) {
+    String charset = null;
+    if (contentType != null) {
+      charset = charsetName(contentType);
+    }
+    if (charset == null) {
+      charset = charsetName(new String(body, 0, Math.min(SNIFF_BYTES, body.length),
+          StandardCharsets.ISO_8859_1));
+    }
+    try {
+      return charset == null ? StandardCharsets.UTF_8 : Charset.forName(charset);
+    } catch (IllegalArgumentException e) {
+      return StandardCharsets.UTF_8;
+    }
+  }
+
+  private static String charsetName(String value) {
+    Matcher matcher = CHARSET_PATTERN.matcher(value);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  public String extract(byte[] body, String contentType) {
+    Charset charset = charset(contentType, body);
+    try (Reader reader = new InputStreamReader(new ByteArrayInputStream(body), charset)) {
+      return extract(reader, body.length);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  String extract(Reader reader, int sizeHint) throws IOException {
+    this.text = new StringBuilder(sizeHint / 4);
+    this.state = State.TEXT;
+    this.skippedElement = null;
+    this.skippedDepth = 0;
+    this.contentDepth = 0;
+    int read;
+    while ((read = reader.read(this.buffer)) > 0) {
+      for (int i = 0; i < read; i++) {
+        accept(this.buffer[i]);
+      }
+    }
+    if (this.state == State.ENTITY) {
+      appendText('&');
+      appendText(this.entity);
+    }
+    return this.text.toString().trim();
+  }
+
+  private void accept(char c) {
+    switch (this.state) {
+      case TEXT:
+        if (c == '<') {
+          this.state = State.TAG_OPEN;
+        } else if (c == '&') {
+          this.entity.setLength(0);
+          this.state = State.ENTITY;
+        } else {
+          appendText(c);
+        }
+        break;
+      case TAG_OPEN:
+        this.tagName.setLength(0);
+        this.endTag = false;
+        this.selfClosing = false;
+        if (c == '/') {
+          this.endTag = true;
+          this.state = State.TAG_NAME;
+        } else if (Character.isLetter(c)) {
+          this.tagName.append(Character.toLowerCase(c));
+          this.state = State.TAG_NAME;
+        } else if (c == '!') {
+          this.matched = 0;
+          this.state = State.DECLARATION;
+        } else if (c == '?') {
+          this.matched = 3;
+          this.state = State.DECLARATION;
+        } else {
+          // Not a tag after all, "a < b"
+          appendText('<');
+          this.state = State.TEXT;
+          accept(c);
+        }
+        break;
+      case TAG_NAME:
+        if (c == '>') {
+          tag();
+        } else if (Character.isWhitespace(c)) {
+          this.state = State.TAG_ATTRIBUTES;
+        } else if (c == '/') {
+          this.selfClosing = true;
+          this.state = State.TAG_ATTRIBUTES;
+        } else {
+          this.tagName.append(Character.toLowerCase(c));
+        }
+        break;
+      case TAG_ATTRIBUTES:
+        if (c == '>') {
+          tag();
+        } else if (c == '"' || c == '\'') {
+          this.quote = c;
+          this.state = State.QUOTED;
+        } else if (!Character.isWhitespace(c)) {
+          this.selfClosing = c == '/';
+        }
+        break;
+      case QUOTED:
+        if (c == this.quote) {
+          this.state = State.TAG_ATTRIBUTES;
+        }
+        break;
+      case DECLARATION:
+        // "<!--" starts a comment, anything else ("<!DOCTYPE", "<?xml") ends at the first '>'
+        if (c == '-' && this.matched < 2) {
+          this.matched++;
+          if (this.matched == 2) {
+            this.matched = 0;
+            this.state = State.COMMENT;
+          }
+        } else if (c == '>') {
+          this.state = State.TEXT;
+        } else {
+          this.matched = 3;
+        }
+        break;
+      case COMMENT:
+        if (c == '-') {
+          this.matched = Math.min(this.matched + 1, 2);
+        } else if (c == '>' && this.matched == 2) {
+          this.state = State.TEXT;
+        } else {
+          this.matched = 0;
+        }
+        break;
+      case RAW_TEXT:
+        rawText(c);
+        break;
+      case ENTITY:
+        if (c == ';') {
+          appendEntity();
+          this.state = State.TEXT;
+        } else if ((Character.isLetterOrDigit(c) || c == '#')
+            && this.entity.length() < MAX_ENTITY_LENGTH) {
+          this.entity.append(c);
+        } else {
+          // Not an entity, "AT&T"
+          appendText('&');
+          appendText(this.entity);
+          this.state = State.TEXT;
+          accept(c);
+        }
+        break;
+      default:
+        throw new IllegalStateException(this.state.name());
+    }
+  }
+
+  private void tag() {
+    this.state = State.TEXT;
+    String name = this.tagName.toString();
+    if (this.skippedElement != null) {
+      if (this.skippedElement.equals("head") && name.equals("body")) {
+        // The end tag of the head is optional
+        this.skippedElement = null;
+        return;
+      }
+      if (name.equals(this.skippedElement) && !this.selfClosing) {
+        this.skippedDepth += this.endTag ? -1 : 1;
+        if (this.skippedDepth == 0) {
+          this.skippedElement = null;
+        }
+      }
+      if (!this.endTag && RAW_TEXT_ELEMENTS.contains(name)) {
+        startRawText(name);
+      }
+      return;
+    }
+    if (CONTENT_ELEMENTS.contains(name) && !this.selfClosing) {
+      this.contentDepth = Math.max(0, this.contentDepth + (this.endTag ? -1 : 1));
+    }
+    if (this.endTag) {
+      if (BLOCK_ELEMENTS.contains(name)) {
+        endLine();
+      }
+      return;
+    }
+    if (RAW_TEXT_ELEMENTS.contains(name)) {
+      startRawText(name);
+    } else if ((SKIPPED_ELEMENTS.contains(name)
+        || name.equals(HEADER_ELEMENT) && this.contentDepth == 0) && !this.selfClosing) {
+      this.skippedElement = name;
+      this.skippedDepth = 1;
+    } else if (BLOCK_ELEMENTS.contains(name)) {
+      endLine();
+    }
+  }
+
+  private void startRawText(String name) {
+    if (this.selfClosing) {
+      return;
+    }
+    this.rawTextElement = "</" + name;
+    this.matched = 0;
+    this.state = State.RAW_TEXT;
+  }
+
+  private void rawText(char c) {
+    if (this.matched == this.rawTextElement.length()) {
+      // Skip the rest of the end tag
+      if (c == '>') {
+        this.state = State.TEXT;
+      }
+    } else if (Character.toLowerCase(c) == this.rawTextElement.charAt(this.matched)) {
+      this.matched++;
+    } else {
+      this.matched = c == '<' ? 1 : 0;
+    }
+  }
+
+  private void appendEntity() {
+    String name = this.entity.toString();
+    String value = null;
+    if (name.startsWith("#x") || name.startsWith("#X")) {
+      value = codePoint(name.substring(2), 16);
+    } else if (name.startsWith("#")) {
+      value = codePoint(name.substring(1), 10);
+    } else {
+      value = ENTITIES.get(name);
+    }
+    if (value == null) {
+      appendText('&');
+      appendText(this.entity);
+      appendText(';');
+    } else {
+      appendText(value);
+    }
+  }
+
+  private static String codePoint(String digits, int radix) {
+    try {
+      int codePoint = Integer.parseInt(digits, radix);
+      return Character.isValidCodePoint(codePoint) ? new String(Character.toChars(codePoint))
+          : null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private void appendText(CharSequence chars) {
+    for (int i = 0; i < chars.length(); i++) {
+      appendText(chars.charAt(i));
+    }
+  }
+
+  private void appendText(char c) {
+    if (this.skippedElement != null) {
+      return;
+    }
+    if (Character.isWhitespace(c) || c == '\u00A0') {
+      int length = this.text.length();
+      if (length > 0 && !Character.isWhitespace(this.text.charAt(length - 1))) {
+        this.text.append(' ');
+      }
+    } else {
+      this.text.append(c);
+    }
+  }
+
+  private void endLine() {
+    int length = this.text.length();
+    while (length > 0 && this.text.charAt(length - 1) == ' ') {
+      length--;
+    }
+    this.text.setLength(length);
+    if (length > 0 && this.text.charAt(length - 1) != '\n') {
+      this.text.append('\n');
+    }
+  }
+}
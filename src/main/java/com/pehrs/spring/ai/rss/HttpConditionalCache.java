@@ -0,0 +1,237 @@
+package com.pehrs.spring.ai.rss;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * An on-disk cache of HTTP responses used for conditional GETs. For every url with an
+ * {@code ETag} or {@code Last-Modified} header the validators are stored in a properties file and
+ * the body gzip compressed next to it. Later requests for the url send {@code If-None-Match} /
+ * {@code If-Modified-Since}, and a {@code 304 Not Modified} is served from the cache.
+ *
+ * <p>An article is only known to be ingested once its chunks have been written, which can be long
+ * after it was downloaded or never (a failed write, a crash). So the writer marks the entry with
+ * {@link #markStored(String)}, or the processor once an article turns out to have no chunks to
+ * write (no text, or only near duplicates), and a {@code 304} of an article that is not marked still gives the
+ * cached body. Storing a new response clears the mark. The mark records how the chunks were
+ * stored (the embedding layout of the vector store), and an entry marked with another layout is not
+ * stored, so a change of cell type or projection extracts and feeds every article again.
+ */
+public class HttpConditionalCache {
+
+  private static final Logger log = LoggerFactory.getLogger(HttpConditionalCache.class);
+
+  private static final String ETAG = "etag";
+  private static final String LAST_MODIFIED = "lastModified";
+  private static final String BODY_BYTES = "bodyBytes";
+  private static final String FETCH_MS = "fetchMs";
+  private static final String STORED = "stored";
+  private static final String CONTENT_TYPE = "contentType";
+
+  /**
+   * A cached body with the {@code Content-Type} it was served with, {@code null} if unknown.
+   */
+  public record CachedBody(byte[] body, String contentType) {
+
+  }
+
+  private final Path dir;
+  private final String storedLayout;
+  private final Meter hitMeter;
+  private final Meter missMeter;
+  private final Counter bytesSavedCounter;
+  private final Counter msSavedCounter;
+
+  /**
+   * @param storedLayout the layout the chunks of a marked entry are stored with
+   */
+  public HttpConditionalCache(Path dir, MetricRegistry metricRegistry, String storedLayout)
+      throws IOException {
+    this.dir = Files.createDirectories(dir);
+    this.storedLayout = storedLayout;
+    this.hitMeter = metricRegistry.meter("http.cache.hit");
+    this.missMeter = metricRegistry.meter("http.cache.miss");
+    this.bytesSavedCounter = metricRegistry.counter("http.cache.bytesSaved");
+    this.msSavedCounter = metricRegistry.counter("http.cache.msSaved");
+  }
+
+  /**
+   * Adds the validators of the cached response, if any, to the request headers.
+   */
+  public void addConditionalHeaders(String url, HttpHeaders requestHeaders) {
+    Properties meta = readMeta(url);
+    if (meta == null) {
+      return;
+    }
+    if (meta.getProperty(ETAG) != null) {
+      requestHeaders.set(HttpHeaders.IF_NONE_MATCH, meta.getProperty(ETAG));
+    }
+    if (meta.getProperty(LAST_MODIFIED) != null) {
+      requestHeaders.set(HttpHeaders.IF_MODIFIED_SINCE, meta.getProperty(LAST_MODIFIED));
+    }
+  }
+
+  /**
+   * Records a {@code 304 Not Modified} for the url.
+   *
+   * @param readBody whether the cached body is needed
+   * @return the cached body and its content type, or {@code null} if not requested or no longer
+   *     available
+   */
+  public CachedBody notModified(String url, boolean readBody) {
+    Properties meta = readMeta(url);
+    this.hitMeter.mark();
+    if (meta != null) {
+      this.bytesSavedCounter.inc(Long.parseLong(meta.getProperty(BODY_BYTES, "0")));
+      this.msSavedCounter.inc(Long.parseLong(meta.getProperty(FETCH_MS, "0")));
+    }
+    if (!readBody) {
+      return null;
+    }
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(bodyPath(url)))) {
+      return new CachedBody(in.readAllBytes(),
+          meta == null ? null : meta.getProperty(CONTENT_TYPE));
+    } catch (IOException e) {
+      log.warn("Cached body of " + url + " is not readable: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Marks the cached response of the url as stored, its chunks have been written to the vector
+   * store.
+   */
+  public void markStored(String url) {
+    Properties meta = readMeta(url);
+    if (meta == null || this.storedLayout.equals(meta.getProperty(STORED))) {
+      return;
+    }
+    meta.setProperty(STORED, this.storedLayout);
+    try {
+      writeMeta(url, meta);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @return whether the cached response of the url has been marked stored with the current layout
+   */
+  public boolean isStored(String url) {
+    Properties meta = readMeta(url);
+    return meta != null && this.storedLayout.equals(meta.getProperty(STORED));
+  }
+
+  /**
+   * @return whether a response with these headers can be validated later on, and so is cached
+   */
+  public static boolean isCacheable(HttpHeaders responseHeaders) {
+    return responseHeaders.getETag() != null
+        || responseHeaders.getFirst(HttpHeaders.LAST_MODIFIED) != null;
+  }
+
+  /**
+   * Stores a full (200) response. Responses without validators are not cached.
+   *
+   * @param body the response body, may be {@code null} if the response is not cacheable
+   */
+  public void store(String url, HttpHeaders responseHeaders, byte[] body, long fetchMs) {
+    this.missMeter.mark();
+    if (!isCacheable(responseHeaders)) {
+      return;
+    }
+    String etag = responseHeaders.getETag();
+    String lastModified = responseHeaders.getFirst(HttpHeaders.LAST_MODIFIED);
+    String contentType = responseHeaders.getFirst(HttpHeaders.CONTENT_TYPE);
+    Properties meta = new Properties();
+    if (etag != null) {
+      meta.setProperty(ETAG, etag);
+    }
+    if (lastModified != null) {
+      meta.setProperty(LAST_MODIFIED, lastModified);
+    }
+    // Replayed with the body, it decides the extractor and the charset
+    if (contentType != null) {
+      meta.setProperty(CONTENT_TYPE, contentType);
+    }
+    meta.setProperty(BODY_BYTES, Integer.toString(body.length));
+    meta.setProperty(FETCH_MS, Long.toString(fetchMs));
+    try {
+      Path bodyTmp = Files.createTempFile(this.dir, "body", ".tmp");
+      try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(bodyTmp))) {
+        out.write(body);
+      }
+      Files.move(bodyTmp, bodyPath(url), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      writeMeta(url, meta);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void writeMeta(String url, Properties meta) throws IOException {
+    Path metaTmp = Files.createTempFile(this.dir, "meta", ".tmp");
+    try (OutputStream out = Files.newOutputStream(metaTmp)) {
+      meta.store(out, url);
+    }
+    Files.move(metaTmp, metaPath(url), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  public void logSummary() {
+    log.info(String.format(
+        "HTTP cache: %d not modified, %d fetched, %d KB and %d ms saved",
+        this.hitMeter.getCount(), this.missMeter.getCount(),
+        this.bytesSavedCounter.getCount() / 1024, this.msSavedCounter.getCount()));
+  }
+
+  private Properties readMeta(String url) {
+    Path metaPath = metaPath(url);
+    if (!Files.exists(metaPath)) {
+      return null;
+    }
+    Properties meta = new Properties();
+    try (InputStream in = Files.newInputStream(metaPath)) {
+      meta.load(in);
+      return meta;
+    } catch (IOException e) {
+      log.warn("Cache entry of " + url + " is not readable: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private Path metaPath(String url) {
+    return this.dir.resolve(key(url) + ".properties");
+  }
+
+  private Path bodyPath(String url) {
+    return this.dir.resolve(key(url) + ".gz");
+  }
+
+  private static String key(String url) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(url.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
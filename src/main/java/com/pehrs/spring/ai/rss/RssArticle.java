@@ -0,0 +1,10 @@
+package com.pehrs.spring.ai.rss;
+
+/**
+ * A downloaded article, the raw response body of one RSS item url.
+ *
+ * @param contentType the Content-Type header of the response, may be {@code null}
+ */
+public record RssArticle(String url, String contentType, byte[] body) {
+
+}
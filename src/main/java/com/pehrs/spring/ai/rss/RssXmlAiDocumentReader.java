@@ -1,122 +1,396 @@
 package com.pehrs.spring.ai.rss;
 
 
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.dataformat.xml.XmlMapper;
-import java.io.FileNotFoundException;
-import java.io.IOException;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Stack;
-import java.util.stream.Collectors;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import org.springframework.ai.document.Document;
-import org.springframework.ai.reader.tika.TikaDocumentReader;
-import org.springframework.batch.item.ItemReader;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamReader;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.reactive.function.client.ExchangeStrategies;
 import org.springframework.web.reactive.function.client.WebClient;
-import org.xml.sax.SAXException;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
-public class RssXmlAiDocumentReader implements ItemReader<Document> {
+/**
+ * Reads the articles linked from a list of RSS feeds. The text of the articles is extracted into
+ * AI documents by the {@link ArticleTextExtractor} processor.
+ *
+ * <p>With a prefetch concurrency of 0 feeds and articles are fetched one at a time on the calling
+ * thread. Otherwise articles are downloaded concurrently in the background, with at most
+ * {@code prefetchConcurrency} downloads in total and {@code perHostConcurrency} per host, and the
+ * articles are buffered in a queue of {@code queueSize} articles that {@link #read()} drains.
+ *
+ * <p>The position is saved in the step execution context, so a restarted step skips the articles
+ * that were already processed. That is the index of the feed and of the item in it, and the urls
+ * of all articles read. With prefetching the articles of several feeds are in flight at the same
+ * time, so then only the urls are used and the feed index moves when all feeds are done.
+ *
+ * <p>The reader is thread safe, but is meant to be used with one reader per feed in a
+ * partitioned step.
+ */
+public class RssXmlAiDocumentReader implements ItemStreamReader<RssArticle> {
 
-  private final Stack<String> rssUrls;
-  private final DocumentBuilder xmlBuilder;
+  private static final Logger log = LoggerFactory.getLogger(RssXmlAiDocumentReader.class);
+
+  private static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+
+  // Marks the end of the prefetched articles
+  private static final RssArticle END_OF_ARTICLES = new RssArticle("", null, new byte[0]);
+
+  static final String FEED_INDEX_KEY = "rss.feedIndex";
+  static final String ITEM_INDEX_KEY = "rss.itemIndex";
+  static final String PROCESSED_URLS_KEY = "rss.processedUrls";
+
+  private final List<String> allRssUrls;
+  private final ConnectionProvider connectionProvider;
   private final WebClient webClient;
 
-  public RssXmlAiDocumentReader(List<String> rssUrls)
-      throws ParserConfigurationException {
-    this.rssUrls = new Stack();
-    this.rssUrls.addAll(rssUrls);
-    this.xmlBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+  private final HttpConditionalCache httpCache;
+  private final int prefetchConcurrency;
+  private final int queueSize;
+  private final Histogram feedFetchHistogram;
+  private final Histogram articleFetchHistogram;
+  private final Histogram queueDepthHistogram;
+  private final Counter queueSizeCounter;
+  private BlockingQueue<RssArticle> prefetchQueue;
+  private PrefetchSubscriber prefetchSubscriber;
+
+  // The position, saved in the step execution context
+  private int feedIndex = 0;
+  private int itemIndex = 0;
+  private final Set<String> processedUrls = new HashSet<>();
+  private List<String> currentItemUrls;
+
+  public RssXmlAiDocumentReader(List<String> rssUrls) {
+    this(rssUrls, new MetricRegistry(), null, 0, 1, 1);
+  }
+
+  /**
+   * @param httpCache cache used for conditional GETs of feeds and articles, or {@code null}
+   */
+  public RssXmlAiDocumentReader(List<String> rssUrls, MetricRegistry metricRegistry,
+      HttpConditionalCache httpCache,
+      int prefetchConcurrency, int perHostConcurrency, int queueSize) {
+    this.httpCache = httpCache;
+    this.allRssUrls = List.copyOf(rssUrls);
+    this.prefetchConcurrency = prefetchConcurrency;
+    this.queueSize = queueSize;
+
+    // The connection pool is per host so this also limits the concurrent downloads per host
+    this.connectionProvider = ConnectionProvider.builder("rss")
+        .maxConnections(perHostConcurrency)
+        .pendingAcquireMaxCount(-1)
+        .pendingAcquireTimeout(Duration.ofMinutes(10))
+        .build();
     this.webClient = WebClient.builder()
         .clientConnector(new ReactorClientHttpConnector(
-            HttpClient.create().followRedirect(true)
+            HttpClient.create(connectionProvider).followRedirect(true)
         ))
-        .exchangeStrategies(ExchangeStrategies.withDefaults())
+        .exchangeStrategies(ExchangeStrategies.builder()
+            .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(MAX_BODY_BYTES))
+            .build())
         .build();
+
+    this.feedFetchHistogram = metricRegistry.histogram("fetch.feed.ms");
+    this.articleFetchHistogram = metricRegistry.histogram("fetch.article.ms");
+    this.queueDepthHistogram = metricRegistry.histogram("fetch.queue.depth");
+    // Shared by the readers of all partitions
+    this.queueSizeCounter = metricRegistry.counter("fetch.queue.size");
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public synchronized void open(ExecutionContext executionContext) {
+    this.feedIndex = executionContext.getInt(FEED_INDEX_KEY, 0);
+    this.itemIndex = executionContext.getInt(ITEM_INDEX_KEY, 0);
+    this.processedUrls.clear();
+    if (executionContext.containsKey(PROCESSED_URLS_KEY)) {
+      this.processedUrls.addAll((List<String>) executionContext.get(PROCESSED_URLS_KEY));
+      log.info(String.format("Resuming at feed %d, item %d, with %d articles already processed",
+          feedIndex, itemIndex, processedUrls.size()));
+    }
   }
 
   @Override
-  public Document read()
+  public synchronized void update(ExecutionContext executionContext) {
+    executionContext.putInt(FEED_INDEX_KEY, feedIndex);
+    executionContext.putInt(ITEM_INDEX_KEY, itemIndex);
+    executionContext.put(PROCESSED_URLS_KEY, new ArrayList<>(processedUrls));
+  }
+
+  @Override
+  public synchronized void close() {
+    if (prefetchSubscriber != null) {
+      prefetchSubscriber.dispose();
+    }
+    connectionProvider.dispose();
+  }
+
+  @Override
+  public synchronized RssArticle read()
       throws Exception {
+    RssArticle article;
+    if (prefetchConcurrency > 0) {
+      article = readPrefetched();
+    } else {
+      article = readNext();
+    }
+    if (article != null) {
+      processedUrls.add(article.url());
+    }
+    return article;
+  }
 
-    if(urlDocs.empty()) {
-      String url = nextUrl();
+  private RssArticle readNext() {
+    String url;
+    while ((url = nextUrl()) != null) {
+      RssArticle article = fetchArticle(url).block();
+      if (article != null) {
+        return article;
+      }
+      // Failed or not modified, let's skip to the next url...
+    }
+    return null;
+  }
 
-      if (url == null) {
-        return null;
+  private String nextUrl() {
+    while (feedIndex < allRssUrls.size()) {
+      if (currentItemUrls == null) {
+        currentItemUrls = fetchItemUrls(allRssUrls.get(feedIndex)).collectList().block();
       }
-      try {
-        Resource xmlResource = new UrlResource(url);
-        TikaDocumentReader documentReader = new TikaDocumentReader(xmlResource);
-        List<Document> documents =
-            documentReader.get();
-        urlDocs.addAll(documents);
-      } catch (RuntimeException ex) {
-        // Let's skip to the next url...
-        return read();
+      while (itemIndex < currentItemUrls.size()) {
+        String url = currentItemUrls.get(itemIndex++);
+        if (!processedUrls.contains(url)) {
+          return url;
+        }
       }
+      currentItemUrls = null;
+      feedIndex++;
+      itemIndex = 0;
     }
+    endOfArticles();
+    return null;
+  }
 
-    if(urlDocs.empty()) {
+  private RssArticle readPrefetched() throws Exception {
+    if (prefetchSubscriber == null) {
+      startPrefetch();
+    }
+    RssArticle article = prefetchQueue.take();
+    queueDepthHistogram.update(prefetchQueue.size());
+    if (article == END_OF_ARTICLES) {
+      // Leave the marker for any later calls
+      prefetchQueue.put(END_OF_ARTICLES);
+      feedIndex = allRssUrls.size();
+      itemIndex = 0;
+      endOfArticles();
       return null;
     }
-
-    return urlDocs.pop();
+    queueSizeCounter.dec();
+    prefetchSubscriber.requestOne();
+    return article;
   }
 
-  private Stack<Document> urlDocs = new Stack();
-
-  private Stack<String> currentRssItemUrls = new Stack();
+  private boolean endReported = false;
 
-  private String nextUrl() throws IOException, SAXException {
-    if (currentRssItemUrls.empty()) {
-      this.currentRssItemUrls = getNextListOfItems();
+  private void endOfArticles() {
+    if (!endReported && httpCache != null) {
+      httpCache.logSummary();
     }
-    if (currentRssItemUrls.empty()) {
-      return null;
-    }
-    return currentRssItemUrls.pop();
+    endReported = true;
   }
 
-  private static final XmlMapper xmlMapper = new XmlMapper();
+  private void startPrefetch() {
+    this.prefetchQueue = new LinkedBlockingQueue<>(queueSize + 1);
+    this.prefetchSubscriber = new PrefetchSubscriber(prefetchQueue, queueSize, queueSizeCounter);
+    // The processed urls are only added to on this thread, take a copy for the netty threads
+    Set<String> skippedUrls = Set.copyOf(processedUrls);
+    Flux.fromIterable(allRssUrls.subList(feedIndex, allRssUrls.size()))
+        .concatMap(rssUrl -> fetchItemUrls(rssUrl)
+            .onErrorResume(ex -> {
+              log.warn("Failed to fetch feed " + rssUrl + ": " + ex.getMessage());
+              return Flux.empty();
+            }))
+        .filter(url -> !skippedUrls.contains(url))
+        .flatMap(this::fetchArticle, prefetchConcurrency)
+        .subscribe(prefetchSubscriber);
+  }
 
-  private static final String USER_AGENT = "Mozilla/5.0 (X11; Ubuntu; Linux x86_64; rv:122.0) Gecko/20100101 Firefox/122.0";
+  /**
+   * Downloads an article, empty if it failed or was not modified since it was cached and stored.
+   */
+  public Mono<RssArticle> fetchArticle(String url) {
+    return fetchArticleOrError(url)
+        .onErrorResume(ex -> {
+          // Let's skip to the next url...
+          log.debug("Failed to fetch " + url + ": " + ex.getMessage());
+          return Mono.empty();
+        });
+  }
+
+  /**
+   * Downloads an article, empty if it was not modified since it was cached and stored, and an
+   * error if the download failed.
+   */
+  public Mono<RssArticle> fetchArticleOrError(String url) {
+    AtomicReference<String> contentType = new AtomicReference<>();
+    Flux<DataBuffer> body = fetch(url, false, articleFetchHistogram,
+        responseHeaders -> contentType.set(responseHeaders.getFirst(HttpHeaders.CONTENT_TYPE)),
+        MediaType.ALL);
+    return DataBufferUtils.join(body, MAX_BODY_BYTES)
+        .map(buffer -> {
+          byte[] bytes = new byte[buffer.readableByteCount()];
+          buffer.read(bytes);
+          DataBufferUtils.release(buffer);
+          return new RssArticle(url, contentType.get(), bytes);
+        });
+  }
 
-  static {
-    xmlMapper.disable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
-    xmlMapper.enable(SerializationFeature.INDENT_OUTPUT);
+  /**
+   * GETs the url, conditionally if there is a cached response, and streams the body. A
+   * {@code 304 Not Modified} gives the cached body if {@code bodyIfNotModified} is set or the
+   * response has not been marked stored, and nothing otherwise. So unchanged articles are not
+   * extracted again once their chunks have been written. The cached body comes with the cached
+   * {@code Content-Type}, so it is extracted the same way as when it was downloaded.
+   */
+  private Flux<DataBuffer> fetch(String url, boolean bodyIfNotModified,
+      Histogram fetchHistogram, Consumer<HttpHeaders> responseHeadersConsumer,
+      MediaType... accept) {
+    return Flux.defer(() -> {
+      long start = System.currentTimeMillis();
+      return webClient.get()
+          .uri(url)
+          .accept(accept)
+          .header(HttpHeaders.USER_AGENT, USER_AGENT)
+          .headers(headers -> {
+            if (httpCache != null) {
+              httpCache.addConditionalHeaders(url, headers);
+            }
+          })
+          .exchangeToFlux(response -> {
+            if (response.statusCode().value() == HttpStatus.NOT_MODIFIED.value()
+                && httpCache != null) {
+              return response.releaseBody()
+                  .then(Mono.fromCallable(() -> httpCache.notModified(url,
+                          bodyIfNotModified || !httpCache.isStored(url)))
+                      .subscribeOn(Schedulers.boundedElastic()))
+                  .map(cached -> {
+                    if (cached.contentType() != null) {
+                      HttpHeaders cachedHeaders = new HttpHeaders();
+                      cachedHeaders.set(HttpHeaders.CONTENT_TYPE, cached.contentType());
+                      responseHeadersConsumer.accept(cachedHeaders);
+                    }
+                    return (DataBuffer) DefaultDataBufferFactory.sharedInstance.wrap(
+                        cached.body());
+                  })
+                  .flux();
+            }
+            if (!response.statusCode().is2xxSuccessful()) {
+              return response.<DataBuffer>createError().flux();
+            }
+            HttpHeaders responseHeaders = response.headers().asHttpHeaders();
+            responseHeadersConsumer.accept(responseHeaders);
+            Flux<DataBuffer> body = response.bodyToFlux(DataBuffer.class);
+            if (httpCache == null) {
+              return body;
+            }
+            // Keep a copy of the body for the cache while it streams through
+            ByteArrayOutputStream copy = HttpConditionalCache.isCacheable(responseHeaders)
+                ? new ByteArrayOutputStream() : null;
+            return body
+                .doOnNext(buffer -> {
+                  if (copy != null) {
+                    byte[] bytes = new byte[buffer.readableByteCount()];
+                    buffer.toByteBuffer(ByteBuffer.wrap(bytes));
+                    copy.write(bytes, 0, bytes.length);
+                  }
+                })
+                .concatWith(Mono.<DataBuffer>fromRunnable(() ->
+                        httpCache.store(url, responseHeaders,
+                            copy == null ? null : copy.toByteArray(),
+                            System.currentTimeMillis() - start))
+                    .subscribeOn(Schedulers.boundedElastic()));
+          })
+          .doOnComplete(() -> fetchHistogram.update(System.currentTimeMillis() - start));
+    });
   }
 
-  private Stack<String> getNextListOfItems() throws IOException, SAXException {
-    if (rssUrls.empty()) {
-      return new Stack();
+  /**
+   * Moves prefetched articles into a bounded queue, only requesting a new article from upstream
+   * when one has been taken from the queue.
+   */
+  private static class PrefetchSubscriber extends BaseSubscriber<RssArticle> {
+
+    private final BlockingQueue<RssArticle> queue;
+    private final int queueSize;
+    private final Counter queueSizeCounter;
+
+    PrefetchSubscriber(BlockingQueue<RssArticle> queue, int queueSize, Counter queueSizeCounter) {
+      this.queue = queue;
+      this.queueSize = queueSize;
+      this.queueSizeCounter = queueSizeCounter;
+    }
+
+    void requestOne() {
+      request(1);
     }
-    String rssUrl = rssUrls.pop();
-    String responseBody = webClient.get()
-        .uri(rssUrl)
-        .accept(MediaType.APPLICATION_RSS_XML)
-        .retrieve().bodyToMono(String.class).block();
-
-    if (responseBody == null) {
-      return new Stack();
+
+    @Override
+    protected void hookOnSubscribe(Subscription subscription) {
+      request(queueSize);
+    }
+
+    @Override
+    protected void hookOnNext(RssArticle article) {
+      // Never blocks as we never request more than there is room for
+      queue.offer(article);
+      queueSizeCounter.inc();
     }
 
-    RssFeed rssFeed = xmlMapper.readValue(responseBody, RssFeed.class);
-    Stack<String> itemUrls = new Stack<>();
-    itemUrls.addAll(
-        rssFeed.channel().items().stream()
-            .map(rssItem -> rssItem.link() == null ? rssItem.guid() : rssItem.link())
-            .collect(Collectors.toList())
-    );
+    @Override
+    protected void hookOnError(Throwable throwable) {
+      log.warn("Prefetching stopped: " + throwable.getMessage());
+      queue.offer(END_OF_ARTICLES);
+    }
+
+    @Override
+    protected void hookOnComplete() {
+      queue.offer(END_OF_ARTICLES);
+    }
+  }
+
+  private static final String USER_AGENT = "Mozilla/5.0 (X11; Ubuntu; Linux x86_64; rv:122.0) Gecko/20100101 Firefox/122.0";
 
-    return itemUrls;
+  /**
+   * Streams the item urls of the feed, each one as soon as it has been parsed.
+   */
+  public Flux<String> fetchItemUrls(String rssUrl) {
+    return FeedItemUrlParser.itemUrls(fetch(rssUrl, true, feedFetchHistogram, headers -> {},
+        MediaType.APPLICATION_RSS_XML, MediaType.APPLICATION_ATOM_XML, MediaType.APPLICATION_XML));
   }
 }
@@ -2,23 +2,28 @@ package com.pehrs.spring.ai.service;
 
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
+import com.pehrs.spring.ai.vespa.VespaVectorStore;
 import org.springframework.ai.chat.ChatClient;
 import org.springframework.ai.chat.ChatResponse;
+import org.springframework.ai.chat.StreamingChatClient;
 import org.springframework.ai.chat.prompt.Prompt;
 import org.springframework.ai.chat.prompt.PromptTemplate;
 import org.springframework.ai.document.Document;
 import org.springframework.ai.vectorstore.SearchRequest;
-import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
 
 @RestController
 @RequestMapping("/ask")
@@ -26,12 +31,16 @@ public class AskController {
 
 
   private final ChatClient aiClient;
-  private final VectorStore vectorStore;
+  private final StreamingChatClient streamingAiClient;
+  private final VespaVectorStore vectorStore;
   private final Histogram modelCallHistogram;
 
   @Value("classpath:/rag-prompt-template.st")
   private Resource ragPromptTemplate;
 
+  @Value("${ask.chatTimeoutMs}")
+  private long chatTimeoutMs;
+
   record Question(String question) {
 
   }
@@ -40,9 +49,11 @@ public class AskController {
 
   }
 
-  public AskController(MetricRegistry metricRegistry, ChatClient aiClient, VectorStore vectorStore) {
+  public AskController(MetricRegistry metricRegistry, ChatClient aiClient,
+      StreamingChatClient streamingAiClient, VespaVectorStore vectorStore) {
     this.modelCallHistogram = metricRegistry.histogram("model.ms");
     this.aiClient = aiClient;
+    this.streamingAiClient = streamingAiClient;
     this.vectorStore = vectorStore;
   }
 
@@ -50,16 +61,43 @@ public class AskController {
   public Answer ask(@RequestBody Question question) {
     List<Document> similarDocuments = vectorStore.similaritySearch(
         SearchRequest.query(question.question()).withTopK(2));
-    List<String> contentList = similarDocuments.stream().map(Document::getContent).toList();
-    PromptTemplate promptTemplate = new PromptTemplate(ragPromptTemplate);
-    Map<String, Object> promptParameters = new HashMap<>();
-    promptParameters.put("input", question.question());
-    promptParameters.put("documents", String.join("\n", contentList));
-    Prompt prompt = promptTemplate.create(promptParameters);
+    Prompt prompt = createPrompt(question, similarDocuments);
 
     long start =System.currentTimeMillis();
     ChatResponse response = aiClient.call(prompt);
     modelCallHistogram.update(System.currentTimeMillis() - start);
     return new Answer(response.getResult().getOutput().getContent());
   }
+
+  /**
+   * Same as {@link #ask(Question)} but composes the embedding, the Vespa query and the (streamed)
+   * chat call without blocking the request thread. Cancelling the request or hitting
+   * {@code ask.chatTimeoutMs} cancels the outstanding HTTP calls.
+   */
+  @PostMapping("/reactive")
+  public Mono<Answer> askReactive(@RequestBody Question question) {
+    return vectorStore.similaritySearchReactive(
+            SearchRequest.query(question.question()).withTopK(2))
+        .map(similarDocuments -> createPrompt(question, similarDocuments))
+        .flatMap(prompt -> Mono.defer(() -> {
+          long start = System.currentTimeMillis();
+          return streamingAiClient.stream(prompt)
+              .map(response -> response.getResult() == null ? ""
+                  : Objects.toString(response.getResult().getOutput().getContent(), ""))
+              .collect(Collectors.joining())
+              .timeout(Duration.ofMillis(chatTimeoutMs))
+              .doOnSuccess(answer ->
+                  modelCallHistogram.update(System.currentTimeMillis() - start));
+        }))
+        .map(Answer::new);
+  }
+
+  private Prompt createPrompt(Question question, List<Document> similarDocuments) {
+    List<String> contentList = similarDocuments.stream().map(Document::getContent).toList();
+    PromptTemplate promptTemplate = new PromptTemplate(ragPromptTemplate);
+    Map<String, Object> promptParameters = new HashMap<>();
+    promptParameters.put("input", question.question());
+    promptParameters.put("documents", String.join("\n", contentList));
+    return promptTemplate.create(promptParameters);
+  }
 }
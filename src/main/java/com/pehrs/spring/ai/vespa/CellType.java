@@ -0,0 +1,27 @@
+package com.pehrs.spring.ai.vespa;
+
+/**
+ * Cell type of the tensor field the nearest neighbor search runs on.
+ */
+public enum CellType {
+  /**
+   * The full precision embedding field, 4 bytes per cell.
+   */
+  FLOAT,
+  /**
+   * A copy of the embedding rounded to bfloat16 (2 bytes per cell) in the
+   * {@code vespa.quantizedFieldName} field, see the vespa-reduced application package.
+   */
+  BFLOAT16,
+  /**
+   * A copy of the embedding scaled by {@code vespa.int8Scale} and rounded to int8 (1 byte per
+   * cell) in the {@code vespa.quantizedFieldName} field.
+   */
+  INT8,
+  /**
+   * The signs of the embedding packed into bits, 8 cells per byte in an int8 tensor with one
+   * eighth of the dimensions (1 bit per cell), searched by hamming distance. See the vespa-binary
+   * application package.
+   */
+  BINARY
+}
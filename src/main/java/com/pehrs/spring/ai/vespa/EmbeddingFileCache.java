@@ -0,0 +1,311 @@
+package com.pehrs.spring.ai.vespa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent embedding cache keyed by the SHA-256 of the model name and the chunk text.
+ *
+ * <p>Embeddings are appended to a memory-mapped file made of fixed size segments. A record never
+ * spans two segments. Each record is laid out as:
+ * <pre>
+ * int     magic
+ * int     last used (epoch day)
+ * byte[]  key (32 bytes)
+ * int     number of cells
+ * float[] cells
+ * </pre>
+ * The magic is written last, so a record that was only partly written before a crash is ignored
+ * (and overwritten) when the file is opened again. The in-memory index is rebuilt by scanning the
+ * file on open. Records that have not been used for {@code retentionDays} are dropped when the
+ * file is compacted, which happens on open when more than half of the file is dead.
+ *
+ * <p>Lookups take no lock, as a record is never changed once it is in the index (apart from its
+ * last used day, which concurrent lookups all set to today). Appends are serialized.
+ *
+ * <p>Only one process can use the file. An exclusive lock on a {@code .lock} file next to it is
+ * held from open to close (the cache file itself is replaced when compacted), and opening a cache
+ * that another process has open fails with an {@link InUseException}.
+ */
+public class EmbeddingFileCache implements Closeable {
+
+  private static Logger log = LoggerFactory.getLogger(EmbeddingFileCache.class);
+
+  private static final int RECORD_MAGIC = 0xE3BEDD01;
+  // Marks the unused tail of a segment
+  private static final int SKIP_MAGIC = 0xE3BEDDFF;
+  private static final int HEADER_BYTES = 4 + 4 + 32 + 4;
+  private static final int LAST_USED_OFFSET = 4;
+  private static final int KEY_OFFSET = 8;
+  private static final int DIMS_OFFSET = 40;
+  static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+  private record Key(long a, long b, long c, long d) {
+
+  }
+
+  private record Entry(long offset, int size) {
+
+  }
+
+  /**
+   * Thrown when the cache file is already open in another process (or another cache instance).
+   */
+  public static class InUseException extends IOException {
+
+    InUseException(Path path) {
+      super("Embedding cache " + path + " is in use by another process");
+    }
+  }
+
+  private final Path path;
+  private final String modelName;
+  private final int retentionDays;
+  private final FileChannel lockChannel;
+  private final FileLock lock;
+
+  private FileChannel channel;
+  // Read without the lock, only replaced while the cache is being opened
+  private volatile List<MappedByteBuffer> segments;
+  private volatile Map<Key, Entry> index;
+  private long end;
+  private long liveBytes;
+
+  public EmbeddingFileCache(Path path, String modelName, int retentionDays) throws IOException {
+    this.path = path;
+    this.modelName = modelName;
+    this.retentionDays = retentionDays;
+    if (this.path.getParent() != null) {
+      Files.createDirectories(this.path.getParent());
+    }
+    this.lockChannel = FileChannel.open(this.path.resolveSibling(this.path.getFileName() + ".lock"),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock lock;
+    try {
+      lock = this.lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      // Held by another instance in this JVM
+      lock = null;
+    }
+    if (lock == null) {
+      this.lockChannel.close();
+      throw new InUseException(this.path);
+    }
+    this.lock = lock;
+    try {
+      open();
+      if (this.end > 0 && this.liveBytes < this.end / 2) {
+        compact();
+      }
+    } catch (IOException | RuntimeException e) {
+      releaseLock();
+      throw e;
+    }
+  }
+
+  private void open() throws IOException {
+    this.channel = FileChannel.open(this.path,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.segments = new CopyOnWriteArrayList<>();
+    this.index = new ConcurrentHashMap<>();
+    this.end = 0;
+    this.liveBytes = 0;
+
+    int oldestDay = (int) LocalDate.now().toEpochDay() - this.retentionDays;
+    long fileSize = this.channel.size();
+    while (this.end < fileSize) {
+      int pos = (int) (this.end % SEGMENT_BYTES);
+      MappedByteBuffer segment = segment((int) (this.end / SEGMENT_BYTES));
+      if (pos + HEADER_BYTES > SEGMENT_BYTES || segment.getInt(pos) == SKIP_MAGIC) {
+        this.end = nextSegmentStart(this.end);
+        continue;
+      }
+      if (segment.getInt(pos) != RECORD_MAGIC) {
+        break;
+      }
+      int size = HEADER_BYTES + segment.getInt(pos + DIMS_OFFSET) * Float.BYTES;
+      if (segment.getInt(pos + LAST_USED_OFFSET) >= oldestDay) {
+        Entry previous = this.index.put(readKey(segment, pos), new Entry(this.end, size));
+        this.liveBytes += size - (previous == null ? 0 : previous.size());
+      }
+      this.end += size;
+    }
+    log.info(String.format("Opened embedding cache %s with %d entries (%d of %d bytes live)",
+        this.path, this.index.size(), this.liveBytes, this.end));
+  }
+
+  private static long nextSegmentStart(long offset) {
+    return (offset / SEGMENT_BYTES + 1) * SEGMENT_BYTES;
+  }
+
+  private MappedByteBuffer segment(int segmentIndex) throws IOException {
+    while (this.segments.size() <= segmentIndex) {
+      // Mapping read-write grows the (sparse) file to cover the whole segment
+      this.segments.add(this.channel.map(FileChannel.MapMode.READ_WRITE,
+          (long) this.segments.size() * SEGMENT_BYTES, SEGMENT_BYTES));
+    }
+    return this.segments.get(segmentIndex);
+  }
+
+  private static Key readKey(MappedByteBuffer segment, int pos) {
+    return new Key(segment.getLong(pos + KEY_OFFSET), segment.getLong(pos + KEY_OFFSET + 8),
+        segment.getLong(pos + KEY_OFFSET + 16), segment.getLong(pos + KEY_OFFSET + 24));
+  }
+
+  private Key key(String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(this.modelName.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      byte[] hash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+      ByteBuffer buffer = ByteBuffer.wrap(hash);
+      return new Key(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the cached embedding of the chunk text or {@code null}
+   */
+  public List<Double> get(String text) {
+    // Segments first, close() replaces the index before the segments
+    List<MappedByteBuffer> segments = this.segments;
+    Entry entry = this.index.get(key(text));
+    if (entry == null) {
+      return null;
+    }
+    // The segment was mapped before the entry was added to the index
+    MappedByteBuffer segment = segments.get((int) (entry.offset() / SEGMENT_BYTES));
+    int pos = (int) (entry.offset() % SEGMENT_BYTES);
+    int today = (int) LocalDate.now().toEpochDay();
+    if (segment.getInt(pos + LAST_USED_OFFSET) != today) {
+      segment.putInt(pos + LAST_USED_OFFSET, today);
+    }
+    float[] values = new float[segment.getInt(pos + DIMS_OFFSET)];
+    segment.slice(pos + HEADER_BYTES, values.length * Float.BYTES).asFloatBuffer().get(values);
+    return FloatVector.of(values);
+  }
+
+  public synchronized void put(String text, List<Double> embedding) {
+    Key key = key(text);
+    if (this.index.containsKey(key)) {
+      return;
+    }
+    float[] values = VespaTensors.toFloats(embedding);
+    try {
+      append(key, (int) LocalDate.now().toEpochDay(), values);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void append(Key key, int lastUsedDay, float[] values) throws IOException {
+    int size = HEADER_BYTES + values.length * Float.BYTES;
+    if (size > SEGMENT_BYTES) {
+      throw new IllegalArgumentException("Embedding too large for the cache: " + values.length);
+    }
+    int pos = (int) (this.end % SEGMENT_BYTES);
+    if (pos + size > SEGMENT_BYTES) {
+      if (pos + Integer.BYTES <= SEGMENT_BYTES) {
+        segment((int) (this.end / SEGMENT_BYTES)).putInt(pos, SKIP_MAGIC);
+      }
+      this.end = nextSegmentStart(this.end);
+      pos = 0;
+    }
+    MappedByteBuffer segment = segment((int) (this.end / SEGMENT_BYTES));
+    segment.putInt(pos + LAST_USED_OFFSET, lastUsedDay);
+    segment.putLong(pos + KEY_OFFSET, key.a());
+    segment.putLong(pos + KEY_OFFSET + 8, key.b());
+    segment.putLong(pos + KEY_OFFSET + 16, key.c());
+    segment.putLong(pos + KEY_OFFSET + 24, key.d());
+    segment.putInt(pos + DIMS_OFFSET, values.length);
+    segment.slice(pos + HEADER_BYTES, values.length * Float.BYTES).asFloatBuffer().put(values);
+    // Publish the record
+    segment.putInt(pos, RECORD_MAGIC);
+    this.index.put(key, new Entry(this.end, size));
+    this.end += size;
+    this.liveBytes += size;
+  }
+
+  /**
+   * Rewrites the file with only the live records, dropping records that have not been used for
+   * {@code retentionDays} days and the unused segment tails.
+   */
+  private synchronized void compact() throws IOException {
+    long before = this.end;
+    Path compactedPath = this.path.resolveSibling(this.path.getFileName() + ".compact");
+    Files.deleteIfExists(compactedPath);
+    try (EmbeddingFileCache compacted =
+        new EmbeddingFileCache(compactedPath, this.modelName, this.retentionDays)) {
+      List<Map.Entry<Key, Entry>> entries = new ArrayList<>(this.index.entrySet());
+      entries.sort(Comparator.comparingLong(entry -> entry.getValue().offset()));
+      for (Map.Entry<Key, Entry> entry : entries) {
+        long offset = entry.getValue().offset();
+        MappedByteBuffer segment = segment((int) (offset / SEGMENT_BYTES));
+        int pos = (int) (offset % SEGMENT_BYTES);
+        float[] values = new float[segment.getInt(pos + DIMS_OFFSET)];
+        segment.slice(pos + HEADER_BYTES, values.length * Float.BYTES).asFloatBuffer()
+            .get(values);
+        compacted.append(entry.getKey(), segment.getInt(pos + LAST_USED_OFFSET), values);
+      }
+    }
+    closeChannel();
+    Files.move(compactedPath, this.path,
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    open();
+    log.info(String.format("Compacted embedding cache %s from %d to %d bytes",
+        this.path, before, this.end));
+  }
+
+  public int size() {
+    return this.index.size();
+  }
+
+  private void closeChannel() throws IOException {
+    for (MappedByteBuffer segment : this.segments) {
+      segment.force();
+    }
+    // The mappings themselves are released when the buffers are garbage collected
+    this.index = new ConcurrentHashMap<>();
+    this.segments = new CopyOnWriteArrayList<>();
+    this.channel.close();
+  }
+
+  private void releaseLock() throws IOException {
+    if (this.lock.isValid()) {
+      this.lock.release();
+    }
+    this.lockChannel.close();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (this.channel.isOpen()) {
+      closeChannel();
+    }
+    releaseLock();
+  }
+}
@@ -0,0 +1,308 @@
+package com.pehrs.spring.ai.vespa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * A linear projection of embeddings to fewer dimensions, {@code y = M (x - mean)}. Learned once
+ * from a sample of the stored embeddings, either by PCA (the rows of M are the top principal
+ * components) or as a random Gaussian projection (the mean is zero), and then applied to both the
+ * fed and the query embeddings.
+ *
+ * <p>The file is laid out as:
+ * <pre>
+ * int     magic
+ * int     source dimensions (d)
+ * int     target dimensions (k)
+ * float[] mean (d cells)
+ * float[] matrix (k rows of d cells)
+ * </pre>
+ */
+public class EmbeddingProjection {
+
+  private static final int MAGIC = 0xE3BE0001;
+  private static final int HEADER_BYTES = 4 + 4 + 4;
+  // Rounds of subspace iteration when learning the PCA
+  private static final int PCA_ITERATIONS = 4;
+
+  private final int sourceDimensions;
+  private final int targetDimensions;
+  private final float[] mean;
+  // Row major, one row of sourceDimensions cells per target dimension
+  private final float[] matrix;
+
+  EmbeddingProjection(float[] mean, float[] matrix, int targetDimensions) {
+    this.sourceDimensions = mean.length;
+    this.targetDimensions = targetDimensions;
+    this.mean = mean;
+    this.matrix = matrix;
+    if (matrix.length != sourceDimensions * targetDimensions) {
+      throw new IllegalArgumentException(String.format(
+          "Projection matrix has %d cells, expected %d x %d", matrix.length, targetDimensions,
+          sourceDimensions));
+    }
+  }
+
+  public int sourceDimensions() {
+    return sourceDimensions;
+  }
+
+  public int targetDimensions() {
+    return targetDimensions;
+  }
+
+  /**
+   * Hex encoded SHA-256 of the dimensions, mean and matrix, the same for the same projection
+   * learned or loaded again.
+   */
+  public String fingerprint() {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + (mean.length + matrix.length) * Float.BYTES)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(sourceDimensions).putInt(targetDimensions);
+    buffer.asFloatBuffer().put(mean).put(matrix);
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(buffer.array()));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Projects the embedding into {@code projected}, which must have room for
+   * {@link #targetDimensions()} cells, using {@code centered} (of {@link #sourceDimensions()}
+   * cells) as scratch space. Allocates nothing. Each target cell is the dot product of
+   * one contiguous matrix row with the centered embedding, summed in four independent lanes so the
+   * JIT can keep the multiply-adds of consecutive cells in flight.
+   */
+  public void project(float[] embedding, float[] centered, float[] projected) {
+    if (embedding.length != sourceDimensions) {
+      throw new IllegalArgumentException(String.format(
+          "Expected an embedding of %d dimensions but got %d", sourceDimensions,
+          embedding.length));
+    }
+    for (int i = 0; i < sourceDimensions; i++) {
+      centered[i] = embedding[i] - mean[i];
+    }
+    int unrolled = sourceDimensions & ~3;
+    for (int row = 0, offset = 0; row < targetDimensions; row++, offset += sourceDimensions) {
+      float sum0 = 0;
+      float sum1 = 0;
+      float sum2 = 0;
+      float sum3 = 0;
+      int i = 0;
+      for (; i < unrolled; i += 4) {
+        sum0 += matrix[offset + i] * centered[i];
+        sum1 += matrix[offset + i + 1] * centered[i + 1];
+        sum2 += matrix[offset + i + 2] * centered[i + 2];
+        sum3 += matrix[offset + i + 3] * centered[i + 3];
+      }
+      for (; i < sourceDimensions; i++) {
+        sum0 += matrix[offset + i] * centered[i];
+      }
+      projected[row] = (sum0 + sum1) + (sum2 + sum3);
+    }
+  }
+
+  public float[] project(float[] embedding) {
+    float[] projected = new float[targetDimensions];
+    project(embedding, new float[sourceDimensions], projected);
+    return projected;
+  }
+
+  /**
+   * The projection to the first {@code dimensions} of the target dimensions. For a PCA these are
+   * the components that explain the most variance.
+   */
+  public EmbeddingProjection truncate(int dimensions) {
+    if (dimensions > targetDimensions) {
+      throw new IllegalArgumentException(
+          "Can not truncate " + targetDimensions + " dimensions to " + dimensions);
+    }
+    return new EmbeddingProjection(mean, Arrays.copyOf(matrix, dimensions * sourceDimensions),
+        dimensions);
+  }
+
+  /**
+   * A Gaussian random projection, scaled so distances are preserved in expectation
+   * (Johnson-Lindenstrauss).
+   */
+  public static EmbeddingProjection random(int sourceDimensions, int targetDimensions,
+      long seed) {
+    Random random = new Random(seed);
+    float[] matrix = new float[sourceDimensions * targetDimensions];
+    double scale = 1.0 / Math.sqrt(targetDimensions);
+    for (int i = 0; i < matrix.length; i++) {
+      matrix[i] = (float) (random.nextGaussian() * scale);
+    }
+    return new EmbeddingProjection(new float[sourceDimensions], matrix, targetDimensions);
+  }
+
+  /**
+   * The top principal components of the sample, found by randomized subspace iteration on the
+   * centered sample. This never builds the d x d covariance matrix, each round costs two passes
+   * over the sample.
+   */
+  public static EmbeddingProjection pca(List<float[]> sample, int targetDimensions, long seed) {
+    int n = sample.size();
+    int d = sample.get(0).length;
+    if (targetDimensions > Math.min(n, d)) {
+      throw new IllegalArgumentException(String.format(
+          "Can not learn %d components from %d embeddings of %d dimensions", targetDimensions,
+          n, d));
+    }
+    float[] mean = new float[d];
+    for (float[] embedding : sample) {
+      for (int i = 0; i < d; i++) {
+        mean[i] += embedding[i] / n;
+      }
+    }
+    float[][] centered = new float[n][d];
+    for (int r = 0; r < n; r++) {
+      for (int i = 0; i < d; i++) {
+        centered[r][i] = sample.get(r)[i] - mean[i];
+      }
+    }
+
+    // Basis of k vectors of d cells, random to start with
+    Random random = new Random(seed);
+    float[][] basis = new float[targetDimensions][d];
+    for (float[] vector : basis) {
+      for (int i = 0; i < d; i++) {
+        vector[i] = (float) random.nextGaussian();
+      }
+    }
+    orthonormalize(basis);
+    for (int iteration = 0; iteration < PCA_ITERATIONS; iteration++) {
+      // basis = X^T (X basis), then orthonormalized again
+      float[][] scores = new float[targetDimensions][n];
+      IntStream.range(0, targetDimensions).parallel().forEach(c -> {
+        for (int r = 0; r < n; r++) {
+          scores[c][r] = dot(centered[r], basis[c]);
+        }
+      });
+      IntStream.range(0, targetDimensions).parallel().forEach(c -> {
+        float[] vector = basis[c];
+        Arrays.fill(vector, 0);
+        for (int r = 0; r < n; r++) {
+          float score = scores[c][r];
+          float[] row = centered[r];
+          for (int i = 0; i < d; i++) {
+            vector[i] += score * row[i];
+          }
+        }
+      });
+      orthonormalize(basis);
+    }
+
+    // Order the components by the variance they explain
+    double[] variance = new double[targetDimensions];
+    IntStream.range(0, targetDimensions).parallel().forEach(c -> {
+      double sum = 0;
+      for (int r = 0; r < n; r++) {
+        float score = dot(centered[r], basis[c]);
+        sum += score * score;
+      }
+      variance[c] = sum;
+    });
+    Integer[] order = IntStream.range(0, targetDimensions).boxed().toArray(Integer[]::new);
+    Arrays.sort(order, (a, b) -> Double.compare(variance[b], variance[a]));
+    float[] matrix = new float[targetDimensions * d];
+    for (int row = 0; row < targetDimensions; row++) {
+      System.arraycopy(basis[order[row]], 0, matrix, row * d, d);
+    }
+    return new EmbeddingProjection(mean, matrix, targetDimensions);
+  }
+
+  // Modified Gram-Schmidt
+  private static void orthonormalize(float[][] vectors) {
+    for (int c = 0; c < vectors.length; c++) {
+      float[] vector = vectors[c];
+      for (int p = 0; p < c; p++) {
+        float[] previous = vectors[p];
+        float projection = dot(vector, previous);
+        for (int i = 0; i < vector.length; i++) {
+          vector[i] -= projection * previous[i];
+        }
+      }
+      float norm = (float) Math.sqrt(dot(vector, vector));
+      for (int i = 0; i < vector.length; i++) {
+        vector[i] = norm == 0 ? 0 : vector[i] / norm;
+      }
+    }
+  }
+
+  private static float dot(float[] a, float[] b) {
+    float sum0 = 0;
+    float sum1 = 0;
+    int unrolled = a.length & ~1;
+    int i = 0;
+    for (; i < unrolled; i += 2) {
+      sum0 += a[i] * b[i];
+      sum1 += a[i + 1] * b[i + 1];
+    }
+    if (i < a.length) {
+      sum0 += a[i] * b[i];
+    }
+    return sum0 + sum1;
+  }
+
+  public static EmbeddingProjection load(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        // Read the whole file
+      }
+      buffer.flip();
+      if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+        throw new IOException("Not an embedding projection: " + path);
+      }
+      int sourceDimensions = buffer.getInt();
+      int targetDimensions = buffer.getInt();
+      if (buffer.remaining() != (long) sourceDimensions * (targetDimensions + 1) * Float.BYTES) {
+        throw new IOException("Truncated embedding projection: " + path);
+      }
+      float[] mean = new float[sourceDimensions];
+      buffer.asFloatBuffer().get(mean);
+      buffer.position(buffer.position() + sourceDimensions * Float.BYTES);
+      float[] matrix = new float[sourceDimensions * targetDimensions];
+      buffer.asFloatBuffer().get(matrix);
+      return new EmbeddingProjection(mean, matrix, targetDimensions);
+    }
+  }
+
+  /**
+   * Writes the projection to a temporary file that is then moved into place, so a running
+   * application never sees a partly written file.
+   */
+  public void save(Path path) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(
+            HEADER_BYTES + (mean.length + matrix.length) * Float.BYTES)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC).putInt(sourceDimensions).putInt(targetDimensions);
+    buffer.asFloatBuffer().put(mean).put(matrix);
+    buffer.position(0);
+    Path parent = path.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+    Path tmp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,50 @@
+package com.pehrs.spring.ai.vespa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A read-only list view over float cells stored either in a float array or in a direct buffer.
+ * Used to keep cached embeddings compact while still handing out the {@code List<Double>} that
+ * Spring AI works with.
+ */
+final class FloatVector extends AbstractList<Double> implements RandomAccess {
+
+  private final float[] heap;
+  private final FloatBuffer direct;
+
+  private FloatVector(float[] heap, FloatBuffer direct) {
+    this.heap = heap;
+    this.direct = direct;
+  }
+
+  static FloatVector of(float[] values) {
+    return new FloatVector(values, null);
+  }
+
+  static FloatVector of(List<Double> values, boolean offHeap) {
+    float[] floats = VespaTensors.toFloats(values);
+    if (!offHeap) {
+      return new FloatVector(floats, null);
+    }
+    FloatBuffer direct = ByteBuffer.allocateDirect(floats.length * Float.BYTES)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+    direct.put(floats);
+    return new FloatVector(null, direct);
+  }
+
+  @Override
+  public Double get(int index) {
+    return (double) (heap != null ? heap[index] : direct.get(index));
+  }
+
+  @Override
+  public int size() {
+    return heap != null ? heap.length : direct.capacity();
+  }
+}
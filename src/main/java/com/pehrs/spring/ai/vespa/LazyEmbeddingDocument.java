@@ -0,0 +1,46 @@
+package com.pehrs.spring.ai.vespa;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import org.springframework.ai.document.Document;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * A search hit returned without its embedding. The embedding is loaded on the first call to
+ * {@link #getEmbedding()}, with a blocking request to the document API. It must not be called on a
+ * non-blocking thread (such as the netty threads of
+ * {@link VespaVectorStore#similaritySearchReactive}), search in {@code FULL} result mode when the
+ * embeddings are needed there.
+ */
+class LazyEmbeddingDocument extends Document {
+
+  private final Supplier<List<Double>> embeddingLoader;
+  private boolean embeddingLoaded;
+
+  LazyEmbeddingDocument(String id, String content, Map<String, Object> metadata,
+      Supplier<List<Double>> embeddingLoader) {
+    super(id, content, metadata);
+    this.embeddingLoader = embeddingLoader;
+  }
+
+  @Override
+  public synchronized List<Double> getEmbedding() {
+    if (!embeddingLoaded) {
+      if (Schedulers.isInNonBlockingThread()) {
+        throw new IllegalStateException("The embedding of " + getId() + " is loaded with a"
+            + " blocking request and can not be loaded on the non-blocking thread "
+            + Thread.currentThread().getName() + ", use vespa.resultMode: FULL");
+      }
+      setEmbedding(embeddingLoader.get());
+      embeddingLoaded = true;
+    }
+    return super.getEmbedding();
+  }
+
+  @Override
+  public synchronized void setEmbedding(List<Double> embedding) {
+    super.setEmbedding(embedding);
+    embeddingLoaded = true;
+  }
+}
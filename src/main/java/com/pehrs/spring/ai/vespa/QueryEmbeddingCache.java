@@ -0,0 +1,73 @@
+package com.pehrs.spring.ai.vespa;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Caches query embeddings as primitive float vectors. The cache is bounded by the total number of
+ * bytes held, entries expire after a fixed time and are otherwise evicted with the W-TinyLFU
+ * policy of Caffeine. Vectors can optionally be kept in direct (off-heap) buffers.
+ */
+public class QueryEmbeddingCache {
+
+  // Rough per entry overhead of the cache node, key and vector wrapper
+  private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+  private final Cache<String, FloatVector> cache;
+  private final boolean offHeap;
+  private final Meter hitMeter;
+  private final Meter missMeter;
+  private final Meter evictionMeter;
+
+  public QueryEmbeddingCache(MetricRegistry metricRegistry, long maxBytes, Duration ttl,
+      boolean offHeap) {
+    this.offHeap = offHeap;
+    this.hitMeter = metricRegistry.meter("query.cache.hit");
+    this.missMeter = metricRegistry.meter("query.cache.miss");
+    this.evictionMeter = metricRegistry.meter("query.cache.eviction");
+    this.cache = Caffeine.newBuilder()
+        .maximumWeight(maxBytes)
+        .weigher((String query, FloatVector vector) ->
+            ENTRY_OVERHEAD_BYTES + query.length() * 2 + vector.size() * Float.BYTES)
+        .expireAfterWrite(ttl)
+        .removalListener((String query, FloatVector vector, RemovalCause cause) -> {
+          if (cause.wasEvicted()) {
+            this.evictionMeter.mark();
+          }
+        })
+        .build();
+    metricRegistry.gauge("query.cache.bytes", () -> (Gauge<Long>) () ->
+        this.cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0))
+            .orElse(0L));
+  }
+
+  /**
+   * Returns the cached embedding of the query or computes, caches and returns it. Queries that
+   * only differ in leading or trailing white space share one entry, the embedding is computed
+   * from the stripped query so it does not depend on which variant was seen first.
+   *
+   * <p>Concurrent misses of the same query wait for one call of {@code embed}, and count as hits.
+   * If it fails nothing is cached and the exception is thrown to the caller.
+   */
+  public List<Double> get(String query, Function<String, List<Double>> embed) {
+    String key = query.strip();
+    boolean[] loaded = new boolean[1];
+    FloatVector vector = this.cache.get(key, strippedQuery -> {
+      loaded[0] = true;
+      return FloatVector.of(embed.apply(strippedQuery), this.offHeap);
+    });
+    if (loaded[0]) {
+      this.missMeter.mark();
+    } else {
+      this.hitMeter.mark();
+    }
+    return vector;
+  }
+}
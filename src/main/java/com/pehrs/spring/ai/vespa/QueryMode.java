@@ -0,0 +1,18 @@
+package com.pehrs.spring.ai.vespa;
+
+/**
+ * How a similarity search finds and ranks the chunks.
+ */
+public enum QueryMode {
+  /**
+   * Approximate nearest neighbors of the query embedding, ranked by closeness with the
+   * {@code vespa.rankingName} rank profile.
+   */
+  NEAREST_NEIGHBOR,
+  /**
+   * The nearest neighbors or the chunks matching the words of the query (weakAnd over the
+   * content), with the BM25 and closeness rankings fused in the global phase of the
+   * {@code vespa.hybridRankingName} rank profile.
+   */
+  HYBRID
+}
@@ -0,0 +1,16 @@
+package com.pehrs.spring.ai.vespa;
+
+/**
+ * What is fetched for each hit returned by a similarity search.
+ */
+public enum ResultMode {
+  /**
+   * Content and embedding, using the default document summary.
+   */
+  FULL,
+  /**
+   * Content only, using the {@code vespa.leanSummaryName} document summary. The embedding of a hit
+   * is fetched from the document API the first time {@code Document.getEmbedding()} is called.
+   */
+  LEAN
+}
@@ -0,0 +1,16 @@
+package com.pehrs.spring.ai.vespa;
+
+/**
+ * How dense tensors (embeddings) are written in feed and query payloads.
+ */
+public enum TensorFormat {
+  /**
+   * Cells as JSON numbers in full double precision, {@code {"values":[3.810094118118286,...]}}.
+   */
+  JSON,
+  /**
+   * Feed cells as one hex string of the IEEE 754 float bits, {@code {"values":"4073D8A1..."}},
+   * and query cells as JSON numbers in float precision.
+   */
+  HEX
+}
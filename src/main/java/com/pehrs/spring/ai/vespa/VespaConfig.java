@@ -15,6 +15,8 @@ public class VespaConfig {
   String containerEndpoint; // http://localhost:8080
   @Value("${vespa.container.queryUri}")
   String queryUri; // /search/
+  @Value("${vespa.contentCluster}")
+  String contentCluster; // llm
   @Value("${vespa.namespace}")
   String namespace; // llm
   @Value("${vespa.docType}")
@@ -23,6 +25,9 @@ public class VespaConfig {
   // FIXME: This should be extracted from the Spring AI stuff...
   @Value("${vespa.embeddingSize}")
   int embeddingSize; // 4096
+  // Projection applied to fed and query embeddings, an empty path disables it
+  @Value("${vespa.projectionPath}")
+  String projectionPath; // (empty)
   @Value("${vespa.rankingName}")
   String rankingName; // recommendation
   @Value("${vespa.rankingInputName}")
@@ -31,8 +36,88 @@ public class VespaConfig {
   String embeddingFieldName; // embedding
   @Value("${vespa.contentFieldName}")
   String contentFieldName; // content
+  @Value("${vespa.sourceFieldName}")
+  String sourceFieldName; // source
+  @Value("${vespa.timestampFieldName}")
+  String timestampFieldName; // timestamp
+  @Value("${vespa.contentHashFieldName}")
+  String contentHashFieldName; // content_hash
+  // Document summary with only the content hash
+  @Value("${vespa.hashSummaryName}")
+  String hashSummaryName; // hashes
+  // Max number of chunks per article returned by a content hash lookup
+  @Value("${vespa.contentHashMaxHits}")
+  int contentHashMaxHits; // 400
+
+  // How embeddings are encoded in feed and query payloads (JSON or HEX)
+  @Value("${vespa.tensorFormat}")
+  TensorFormat tensorFormat; // JSON
+
+  // Cell type of the field searched for nearest neighbors, anything but FLOAT feeds and queries a
+  // quantized copy of the embedding
+  @Value("${vespa.cellType}")
+  CellType cellType; // FLOAT
+  @Value("${vespa.quantizedFieldName}")
+  String quantizedFieldName; // embedding_q
+  @Value("${vespa.quantizedRankingInputName}")
+  String quantizedRankingInputName; // q_embedding_q
+  @Value("${vespa.int8Scale}")
+  float int8Scale; // 12.7
+
+  // What to fetch for each search hit (FULL or LEAN)
+  @Value("${vespa.resultMode}")
+  ResultMode resultMode; // LEAN
+  // Document summary used in LEAN result mode
+  @Value("${vespa.leanSummaryName}")
+  String leanSummaryName; // lean
+
+  // Query embedding cache, a max size of 0 disables the cache
+  @Value("${vespa.queryCache.maxBytes}")
+  long queryCacheMaxBytes; // 67108864
+  @Value("${vespa.queryCache.ttlSeconds}")
+  long queryCacheTtlSeconds; // 3600
+  @Value("${vespa.queryCache.offHeap}")
+  boolean queryCacheOffHeap; // false
+
+  // Persistent embedding cache used when feeding, an empty path disables the cache
+  @Value("${vespa.embeddingCache.path}")
+  String embeddingCachePath; // ${user.home}/.cache/spring-ai-vespa/embeddings.bin
+  @Value("${vespa.embeddingCache.retentionDays}")
+  int embeddingCacheRetentionDays; // 30
+  // Part of the embedding cache key
+  @Value("${spring.ai.ollama.embedding.model}")
+  String embeddingModel; // mistral
 
   @Value("${vespa.targetHits}")
   int targetHits;
+  // Query time HNSW settings, the index itself is configured in embeddings.sd
+  @Value("${vespa.exploreAdditionalHits}")
+  int exploreAdditionalHits; // 0
+  @Value("${vespa.approximate}")
+  boolean approximate; // true
+
+  // Nearest neighbor only or hybrid (BM25 and nearest neighbor) similarity search
+  @Value("${vespa.queryMode}")
+  QueryMode queryMode; // NEAREST_NEIGHBOR
+  // Rank profile used in HYBRID query mode
+  @Value("${vespa.hybridRankingName}")
+  String hybridRankingName; // hybrid
+
+  // Client side timeout for queries, also passed on to Vespa
+  @Value("${vespa.queryTimeoutMs}")
+  long queryTimeoutMs; // 5000
+
+  // Max number of concurrent /document/v1 requests while feeding
+  @Value("${vespa.feed.maxInFlight}")
+  int feedMaxInFlight; // 16
+  // Number of chunks sent to the embedding client in one call
+  @Value("${vespa.feed.embedBatchSize}")
+  int feedEmbedBatchSize; // 8
+  // Number of concurrent embedding calls
+  @Value("${vespa.feed.embedWorkers}")
+  int feedEmbedWorkers; // 2
+  // Max number of embedded chunks waiting for the feed stage
+  @Value("${vespa.feed.queueDepth}")
+  int feedQueueDepth; // 64
 
 }
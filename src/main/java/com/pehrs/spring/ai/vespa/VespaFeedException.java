@@ -0,0 +1,36 @@
+package com.pehrs.spring.ai.vespa;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Thrown when one or more documents could not be fed to Vespa. Holds every failed document id
+ * together with its cause so the caller can decide what to retry.
+ */
+public class VespaFeedException extends RuntimeException {
+
+  public record Failure(String docId, Throwable cause) {
+
+  }
+
+  private final int attempted;
+  private final List<Failure> failures;
+
+  public VespaFeedException(int attempted, List<Failure> failures) {
+    super(String.format("%d of %d documents failed: %s", failures.size(), attempted,
+        failures.stream()
+            .map(failure -> failure.docId() + " (" + failure.cause().getMessage() + ")")
+            .collect(Collectors.joining(", "))));
+    this.attempted = attempted;
+    this.failures = List.copyOf(failures);
+    this.failures.forEach(failure -> addSuppressed(failure.cause()));
+  }
+
+  public int getAttempted() {
+    return attempted;
+  }
+
+  public List<Failure> getFailures() {
+    return failures;
+  }
+}
@@ -0,0 +1,111 @@
+package com.pehrs.spring.ai.vespa;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+/**
+ * A query request template that is parsed once. Placeholders ({@code {name}}) with a constant
+ * value are folded into the surrounding text at parse time, the remaining placeholders are written
+ * per request straight into a {@link DataBuffer} through a {@link JsonGenerator}.
+ */
+public class VespaQueryTemplate {
+
+  /**
+   * Writes the value of a per request placeholder.
+   */
+  @FunctionalInterface
+  public interface ValueWriter {
+
+    void write(JsonGenerator generator) throws IOException;
+  }
+
+  private static final Pattern PLACEHOLDER = Pattern.compile("\\{([A-Za-z][A-Za-z0-9]*)\\}");
+
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  // Either a SerializedString (literal text) or a String (name of a per request placeholder)
+  private final List<Object> segments;
+  private final int literalLength;
+
+  private VespaQueryTemplate(List<Object> segments, int literalLength) {
+    this.segments = segments;
+    this.literalLength = literalLength;
+  }
+
+  /**
+   * @param template the template text
+   * @param constants values for the placeholders that are the same for every request
+   * @param parameters names of the placeholders that are given per request
+   */
+  public static VespaQueryTemplate parse(String template, Map<String, String> constants,
+      Set<String> parameters) {
+    List<Object> segments = new ArrayList<>();
+    StringBuilder literal = new StringBuilder();
+    int literalLength = 0;
+    Matcher matcher = PLACEHOLDER.matcher(template);
+    int pos = 0;
+    while (matcher.find()) {
+      literal.append(template, pos, matcher.start());
+      String name = matcher.group(1);
+      if (constants.containsKey(name)) {
+        literal.append(constants.get(name));
+      } else if (parameters.contains(name)) {
+        literalLength += literal.length();
+        segments.add(new SerializedString(literal.toString()));
+        literal.setLength(0);
+        segments.add(name);
+      } else {
+        throw new IllegalArgumentException("Unknown placeholder in query template: " + name);
+      }
+      pos = matcher.end();
+    }
+    literal.append(template, pos, template.length());
+    literalLength += literal.length();
+    segments.add(new SerializedString(literal.toString()));
+    return new VespaQueryTemplate(segments, literalLength);
+  }
+
+  /**
+   * Renders the template into a buffer allocated from the given factory. The caller owns the
+   * returned buffer (passing it on as a request body hands the ownership over to the HTTP client).
+   */
+  public DataBuffer render(DataBufferFactory bufferFactory, Map<String, ValueWriter> values,
+      int expectedValuesLength) {
+    DataBuffer buffer = bufferFactory.allocateBuffer(literalLength + expectedValuesLength);
+    try (JsonGenerator generator =
+        jsonFactory.createGenerator(buffer.asOutputStream(), JsonEncoding.UTF8)) {
+      for (Object segment : segments) {
+        if (segment instanceof SerializedString literal) {
+          generator.writeRaw(literal);
+        } else {
+          ValueWriter valueWriter = values.get((String) segment);
+          if (valueWriter == null) {
+            throw new IllegalArgumentException("No value for query template placeholder: "
+                + segment);
+          }
+          valueWriter.write(generator);
+        }
+      }
+    } catch (IOException e) {
+      DataBufferUtils.release(buffer);
+      throw new UncheckedIOException(e);
+    } catch (RuntimeException e) {
+      DataBufferUtils.release(buffer);
+      throw e;
+    }
+    return buffer;
+  }
+}
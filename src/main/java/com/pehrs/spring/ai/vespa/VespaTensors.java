@@ -0,0 +1,135 @@
+package com.pehrs.spring.ai.vespa;
+
+import java.util.List;
+
+/**
+ * Encoders for dense float tensors in the formats accepted by the Vespa document and query APIs.
+ */
+public final class VespaTensors {
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private VespaTensors() {
+  }
+
+  public static float[] toFloats(List<Double> values) {
+    float[] floats = new float[values.size()];
+    for (int i = 0; i < floats.length; i++) {
+      floats[i] = values.get(i).floatValue();
+    }
+    return floats;
+  }
+
+  /**
+   * Encodes the cells as big-endian IEEE 754 floats, 8 hex digits per cell. This is the compact
+   * form Vespa accepts as {@code "values"} for indexed tensors with float cells.
+   */
+  public static String toHex(float[] values) {
+    char[] hex = new char[values.length * 8];
+    int pos = 0;
+    for (float value : values) {
+      int bits = Float.floatToRawIntBits(value);
+      for (int shift = 28; shift >= 0; shift -= 4) {
+        hex[pos++] = HEX_DIGITS[(bits >>> shift) & 0xF];
+      }
+    }
+    return new String(hex);
+  }
+
+  /**
+   * Rounds the cells to the values they get in a tensor of the given cell type, bfloat16 values
+   * or integers in [-127, 127] after scaling by {@code int8Scale}. Binary embeddings have fewer
+   * cells, see {@link #packSignBits(float[], byte[])}.
+   */
+  public static float[] quantize(float[] values, CellType cellType, float int8Scale) {
+    float[] quantized = new float[values.length];
+    for (int i = 0; i < values.length; i++) {
+      quantized[i] = switch (cellType) {
+        case FLOAT -> values[i];
+        case BFLOAT16 -> Float.intBitsToFloat(toBfloat16Bits(values[i]) << 16);
+        case INT8 -> toInt8(values[i], int8Scale);
+        case BINARY -> throw new IllegalArgumentException("Binary embeddings are packed");
+      };
+    }
+    return quantized;
+  }
+
+  /**
+   * Encodes the cells as hex in the given cell type, 8 digits per float, 4 per bfloat16 and 2
+   * per int8 cell.
+   */
+  public static String toHex(float[] values, CellType cellType, float int8Scale) {
+    if (cellType == CellType.FLOAT) {
+      return toHex(values);
+    }
+    if (cellType == CellType.BINARY) {
+      byte[] packed = new byte[values.length / 8];
+      packSignBits(values, packed);
+      char[] hex = new char[packed.length * 2];
+      for (int i = 0; i < packed.length; i++) {
+        hex[i * 2] = HEX_DIGITS[(packed[i] >>> 4) & 0xF];
+        hex[i * 2 + 1] = HEX_DIGITS[packed[i] & 0xF];
+      }
+      return new String(hex);
+    }
+    int digits = cellType == CellType.BFLOAT16 ? 4 : 2;
+    char[] hex = new char[values.length * digits];
+    int pos = 0;
+    for (float value : values) {
+      int bits = cellType == CellType.BFLOAT16 ? toBfloat16Bits(value)
+          : (int) toInt8(value, int8Scale) & 0xFF;
+      for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+        hex[pos++] = HEX_DIGITS[(bits >>> shift) & 0xF];
+      }
+    }
+    return new String(hex);
+  }
+
+  /**
+   * Packs the signs of the cells into bits, 1 for a value above zero, with 8 cells per byte and
+   * the first cell in the most significant bit. This is the layout of Vespa's {@code pack_bits},
+   * so hamming distances between packed embeddings match those computed by Vespa.
+   *
+   * <p>Writes {@code values.length / 8} bytes and allocates nothing. Each iteration builds one
+   * byte from 8 cells without branches, which the JIT keeps in registers.
+   */
+  public static void packSignBits(float[] values, byte[] packed) {
+    int bytes = values.length >>> 3;
+    if (packed.length < bytes) {
+      throw new IllegalArgumentException(
+          "Need " + bytes + " bytes to pack " + values.length + " cells");
+    }
+    for (int b = 0, i = 0; b < bytes; b++, i += 8) {
+      packed[b] = (byte) (positiveBit(values[i]) << 7
+          | positiveBit(values[i + 1]) << 6
+          | positiveBit(values[i + 2]) << 5
+          | positiveBit(values[i + 3]) << 4
+          | positiveBit(values[i + 4]) << 3
+          | positiveBit(values[i + 5]) << 2
+          | positiveBit(values[i + 6]) << 1
+          | positiveBit(values[i + 7]));
+    }
+  }
+
+  // 1 if the value is above zero: the sign of -bits is set for positive values and for -0.0,
+  // the sign of ~bits rules out -0.0 and the negative values
+  private static int positiveBit(float value) {
+    int bits = Float.floatToRawIntBits(value);
+    return ((-bits) & ~bits) >>> 31;
+  }
+
+  /**
+   * The upper 16 bits of the float rounded to nearest even, as Vespa converts floats to bfloat16.
+   */
+  static int toBfloat16Bits(float value) {
+    int bits = Float.floatToRawIntBits(value);
+    if (Float.isNaN(value)) {
+      return (bits >>> 16) | 0x40;
+    }
+    return ((bits + 0x7FFF + ((bits >>> 16) & 1)) >>> 16) & 0xFFFF;
+  }
+
+  static float toInt8(float value, float int8Scale) {
+    return Math.max(-127, Math.min(127, Math.round(value * int8Scale)));
+  }
+}
@@ -1,20 +1,34 @@
 package com.pehrs.spring.ai.vespa;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
+import io.netty.buffer.PooledByteBufAllocator;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.ai.document.Document;
@@ -22,16 +36,31 @@ import org.springframework.ai.embedding.EmbeddingClient;
 import org.springframework.ai.vectorstore.SearchRequest;
 import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
 import org.springframework.http.MediaType;
 import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.ExchangeStrategies;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
 public class VespaVectorStore implements VectorStore {
 
   private static Logger log = LoggerFactory.getLogger(VespaVectorStore.class);
 
+  /**
+   * Document metadata key holding the url of the article a chunk was created from.
+   */
+  public static final String URL_METADATA_KEY = "url";
+
   private final EmbeddingClient embeddingClient;
   private final WebClient webClient;
 
@@ -40,12 +69,27 @@ public class VespaVectorStore implements VectorStore {
   private final VespaConfig config;
   private final String queryUrl;
   private final Histogram embeddingHistogram;
+  private final Histogram embeddingBatchHistogram;
+  private final Histogram feedQueueHistogram;
   private final Histogram insertHistogram;
   private final Histogram queryHistogram;
   private final Meter insertMeter;
   private final Meter queryMeter;
+  private final Histogram deleteHistogram;
+  private final Meter deleteMeter;
   private final String vespaFullNs;
-  private String queryTemplate;
+  private final VespaQueryTemplate queryTemplate;
+  private final DataBufferFactory bufferFactory =
+      new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+  private final Scheduler embeddingScheduler;
+  private final QueryEmbeddingCache queryEmbeddingCache;
+  private EmbeddingFileCache embeddingFileCache;
+  // Set when the cache file is used by another process, embed without it then
+  private boolean embeddingFileCacheInUse;
+  private final EmbeddingProjection projection;
+  private final String embeddingLayout;
+  private final Meter embeddingCacheHitMeter;
+  private final Meter embeddingCacheMissMeter;
 
   // Not strictly needed, I just wanted to see some progress while inserting document
 
@@ -60,21 +104,69 @@ public class VespaVectorStore implements VectorStore {
     // Metrics
     this.insertMeter = metricRegistry.meter("insert.rps");
     this.queryMeter = metricRegistry.meter("query.rps");
+    this.deleteMeter = metricRegistry.meter("delete.rps");
+    this.embeddingCacheHitMeter = metricRegistry.meter("embedding.cache.hit");
+    this.embeddingCacheMissMeter = metricRegistry.meter("embedding.cache.miss");
+    metricRegistry.gauge("embedding.cache.hitRate", () -> (Gauge<Double>) () -> {
+      long hits = this.embeddingCacheHitMeter.getCount();
+      long total = hits + this.embeddingCacheMissMeter.getCount();
+      return total == 0 ? 0.0 : (double) hits / total;
+    });
 
     this.embeddingHistogram = metricRegistry.histogram("embedding.ms");
     this.insertHistogram = metricRegistry.histogram("insert.ms");
     this.queryHistogram = metricRegistry.histogram("query.ms");
+    this.deleteHistogram = metricRegistry.histogram("delete.ms");
+    this.embeddingBatchHistogram = metricRegistry.histogram("embedding.batch.ms");
+    this.feedQueueHistogram = metricRegistry.histogram("feed.queue.ms");
+
+    this.queryEmbeddingCache = this.config.queryCacheMaxBytes > 0
+        ? new QueryEmbeddingCache(metricRegistry, this.config.queryCacheMaxBytes,
+        Duration.ofSeconds(this.config.queryCacheTtlSeconds), this.config.queryCacheOffHeap)
+        : null;
+
+    this.projection = this.config.projectionPath.isBlank() ? null
+        : EmbeddingProjection.load(Path.of(this.config.projectionPath));
+    if (this.projection != null) {
+      if (this.projection.sourceDimensions() != this.config.embeddingSize) {
+        throw new IllegalStateException(String.format(
+            "The projection in %s is for %d dimensions, vespa.embeddingSize is %d",
+            this.config.projectionPath, this.projection.sourceDimensions(),
+            this.config.embeddingSize));
+      }
+      log.info(String.format("Projecting embeddings from %d to %d dimensions",
+          this.projection.sourceDimensions(), this.projection.targetDimensions()));
+    }
+    int storedDimensions = this.projection == null ? this.config.embeddingSize
+        : this.projection.targetDimensions();
+    if (this.config.cellType == CellType.BINARY && storedDimensions % 8 != 0) {
+      throw new IllegalStateException(String.format(
+          "vespa.cellType BINARY packs 8 cells per int8 cell, %d dimensions is not a multiple of 8",
+          storedDimensions));
+    }
+    this.embeddingLayout = embeddingLayout(this.config, this.projection);
 
-    this.queryTemplate = new ClassPathResource("/vespa-query.template").getContentAsString(
-        Charset.defaultCharset());
+    this.embeddingScheduler = Schedulers.newBoundedElastic(
+        this.config.feedEmbedWorkers, Integer.MAX_VALUE, "vespa-embedding", 60, true);
+
+    this.queryTemplate = VespaQueryTemplate.parse(
+        new ClassPathResource(queryTemplateResource(this.config)).getContentAsString(
+            Charset.defaultCharset()),
+        queryTemplateConstants(this.config),
+        Set.of("input", "query", "hits"));
 
     int maxSize = 16 * 1024 * 1024;
     final ExchangeStrategies strategies = ExchangeStrategies.builder()
         .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(maxSize))
         .build();
+    // Make sure the connection pool does not become the limit when feeding
+    ConnectionProvider connectionProvider = ConnectionProvider.builder("vespa")
+        .maxConnections(Math.max(this.config.feedMaxInFlight, 16))
+        .pendingAcquireMaxCount(-1)
+        .build();
     this.webClient = WebClient.builder()
         .clientConnector(new ReactorClientHttpConnector(
-            HttpClient.create().followRedirect(true)
+            HttpClient.create(connectionProvider).followRedirect(true)
         ))
         .exchangeStrategies(strategies)
         .build();
@@ -83,47 +175,252 @@ public class VespaVectorStore implements VectorStore {
 
   }
 
+  /**
+   * The annotations of the nearestNeighbor operator, e.g.
+   * {@code {targetHits:10, hnsw.exploreAdditionalHits:0, approximate:true}}.
+   */
+  public static String nearestNeighborAnnotations(int targetHits, int exploreAdditionalHits,
+      boolean approximate) {
+    return String.format("{targetHits:%d, hnsw.exploreAdditionalHits:%d, approximate:%b}",
+        targetHits, exploreAdditionalHits, approximate);
+  }
+
+  static String queryTemplateResource(VespaConfig config) {
+    return switch (config.queryMode) {
+      case NEAREST_NEIGHBOR -> "/vespa-query.template";
+      case HYBRID -> "/vespa-hybrid-query.template";
+    };
+  }
+
+  static Map<String, String> queryTemplateConstants(VespaConfig config) {
+    Map<String, String> constants = new HashMap<>();
+    constants.put("targetHits", nearestNeighborAnnotations(config.targetHits,
+        config.exploreAdditionalHits, config.approximate));
+    constants.put("rankingName", switch (config.queryMode) {
+      case NEAREST_NEIGHBOR -> config.rankingName;
+      case HYBRID -> config.hybridRankingName;
+    });
+    constants.put("contentFieldName", config.contentFieldName);
+    // The quantized copy of the embedding is searched when there is one
+    constants.put("nearestNeighborField", config.cellType == CellType.FLOAT
+        ? config.embeddingFieldName : config.quantizedFieldName);
+    constants.put("nearestNeighborInput", config.cellType == CellType.FLOAT
+        ? config.rankingInputName : config.quantizedRankingInputName);
+    constants.put("docType", config.docType);
+    constants.put("timeout", config.queryTimeoutMs + "ms");
+    switch (config.resultMode) {
+      case FULL -> {
+        constants.put("fields", String.format("%s, %s", config.embeddingFieldName,
+            config.contentFieldName));
+        constants.put("summary", "default");
+      }
+      case LEAN -> {
+        constants.put("fields", config.contentFieldName);
+        constants.put("summary", config.leanSummaryName);
+      }
+    }
+    return constants;
+  }
+
   public record VespaEmbedding(List<Double> values) {
 
   }
 
+  public record VespaHexEmbedding(String values) {
+
+  }
+
+  public record VespaQuantizedEmbedding(float[] values) {
+
+  }
+
+  public record VespaPackedEmbedding(int[] values) {
+
+  }
+
   public record VespaDoc(Map<String, Object> fields) {
 
   }
 
-  private void addAiDoc(Document aiDoc) {
-    try {
-      // Create embedding
+  /**
+   * A chunk that has been through the embedding stage and is waiting to be fed.
+   */
+  private record EmbeddedDoc(Document aiDoc, List<Double> embedding, long embeddedAt) {
+
+  }
+
+  /**
+   * The embedding as stored in and searched by Vespa, projected if there is a projection. The
+   * embedding caches hold the embeddings as returned by the model.
+   */
+  private List<Double> project(List<Double> embedding) {
+    if (this.projection == null) {
+      return embedding;
+    }
+    return FloatVector.of(this.projection.project(VespaTensors.toFloats(embedding)));
+  }
+
+  private String toVespaJson(Document aiDoc, List<Double> embedding)
+      throws JsonProcessingException {
+    embedding = project(embedding);
+    // Create vespa /document/v1 doc request
+    Map<String, Object> fields = new HashMap<>();
+    fields.put("content", aiDoc.getContent());
+    fields.put("embedding", toVespaEmbedding(embedding));
+    if (this.config.cellType != CellType.FLOAT) {
+      fields.put(this.config.quantizedFieldName, toQuantizedVespaEmbedding(embedding));
+    }
+    Object sourceUrl = aiDoc.getMetadata().get(URL_METADATA_KEY);
+    if (sourceUrl != null) {
+      fields.put(this.config.sourceFieldName, sourceUrl.toString());
+    }
+    fields.put(this.config.timestampFieldName, Instant.now().getEpochSecond());
+    fields.put(this.config.contentHashFieldName, chunkHash(aiDoc.getContent()));
+    VespaDoc vespaDoc = new VespaDoc(fields);
+    return objectMapper.writeValueAsString(vespaDoc);
+  }
+
+  private Object toVespaEmbedding(List<Double> embedding) {
+    return switch (this.config.tensorFormat) {
+      case JSON -> new VespaEmbedding(embedding);
+      case HEX -> new VespaHexEmbedding(VespaTensors.toHex(VespaTensors.toFloats(embedding)));
+    };
+  }
+
+  /**
+   * The embedding rounded to {@code vespa.cellType} on the client, so the cells stored and the
+   * cells of the query are quantized the same way.
+   */
+  private Object toQuantizedVespaEmbedding(List<Double> embedding) {
+    float[] values = VespaTensors.toFloats(embedding);
+    if (this.config.cellType == CellType.BINARY
+        && this.config.tensorFormat == TensorFormat.JSON) {
+      return new VespaPackedEmbedding(toInts(packSignBits(values)));
+    }
+    return switch (this.config.tensorFormat) {
+      case JSON -> new VespaQuantizedEmbedding(
+          VespaTensors.quantize(values, this.config.cellType, this.config.int8Scale));
+      case HEX -> new VespaHexEmbedding(
+          VespaTensors.toHex(values, this.config.cellType, this.config.int8Scale));
+    };
+  }
+
+  private static byte[] packSignBits(float[] values) {
+    byte[] packed = new byte[values.length / 8];
+    VespaTensors.packSignBits(values, packed);
+    return packed;
+  }
+
+  private static int[] toInts(byte[] bytes) {
+    int[] ints = new int[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      ints[i] = bytes[i];
+    }
+    return ints;
+  }
+
+  private Flux<EmbeddedDoc> embedBatch(List<Document> batch) {
+    return Mono.fromCallable(() -> {
+          EmbeddingFileCache cache = getEmbeddingFileCache();
+          List<List<Double>> embeddings = new ArrayList<>(batch.size());
+          List<String> missingTexts = new ArrayList<>();
+          for (Document aiDoc : batch) {
+            List<Double> cached = cache == null ? null : cache.get(aiDoc.getContent());
+            if (cached == null) {
+              missingTexts.add(aiDoc.getContent());
+            }
+            embeddings.add(cached);
+          }
+          if (cache != null) {
+            this.embeddingCacheHitMeter.mark(batch.size() - missingTexts.size());
+            this.embeddingCacheMissMeter.mark(missingTexts.size());
+          }
+
+          long now = System.currentTimeMillis();
+          if (!missingTexts.isEmpty()) {
+            List<List<Double>> computed = this.embeddingClient.embed(missingTexts);
+            this.embeddingBatchHistogram.update(System.currentTimeMillis() - now);
+            now = System.currentTimeMillis();
+            if (computed.size() != missingTexts.size()) {
+              throw new IllegalStateException(String.format(
+                  "Expected %d embeddings but got %d", missingTexts.size(), computed.size()));
+            }
+            int next = 0;
+            for (int i = 0; i < embeddings.size(); i++) {
+              if (embeddings.get(i) == null) {
+                List<Double> embedding = computed.get(next++);
+                embeddings.set(i, embedding);
+                if (cache != null) {
+                  cache.put(batch.get(i).getContent(), embedding);
+                }
+              }
+            }
+          }
+
+          List<EmbeddedDoc> embedded = new ArrayList<>(batch.size());
+          for (int i = 0; i < batch.size(); i++) {
+            embedded.add(new EmbeddedDoc(batch.get(i), embeddings.get(i), now));
+          }
+          return embedded;
+        })
+        // The embedding client is blocking so keep it off the netty threads
+        .subscribeOn(this.embeddingScheduler)
+        .flatMapIterable(embedded -> embedded);
+  }
+
+  /**
+   * The persistent embedding cache is only opened when documents are added, so the query service
+   * never touches the file. If another process (the ingest job and the daemon) has it open the
+   * documents are embedded without it.
+   */
+  private synchronized EmbeddingFileCache getEmbeddingFileCache() throws IOException {
+    if (this.embeddingFileCache == null && !this.embeddingFileCacheInUse
+        && !this.config.embeddingCachePath.isBlank()) {
+      try {
+        this.embeddingFileCache = new EmbeddingFileCache(
+            Path.of(this.config.embeddingCachePath), this.config.embeddingModel,
+            this.config.embeddingCacheRetentionDays);
+      } catch (EmbeddingFileCache.InUseException e) {
+        log.warn(e.getMessage() + ", embedding without it. Set vespa.embeddingCache.path to"
+            + " another file to cache the embeddings of this process.");
+        this.embeddingFileCacheInUse = true;
+      }
+    }
+    return this.embeddingFileCache;
+  }
+
+  public synchronized void close() throws IOException {
+    this.embeddingScheduler.dispose();
+    if (this.embeddingFileCache != null) {
+      this.embeddingFileCache.close();
+      this.embeddingFileCache = null;
+    }
+  }
+
+  private Mono<String> putVespaDoc(String docId, String vespaJson) {
+    String docApiUrl = vespaDocApiUrl(docId);
+    log.debug("Vespa yql request (" + docApiUrl + "): " + vespaJson);
 
+    // Call the document API
+    return Mono.defer(() -> {
       long start = System.currentTimeMillis();
-      List<Double> embedding = this.embeddingClient.embed(aiDoc);
-      this.embeddingHistogram.update(System.currentTimeMillis() - start);
-
-      // Create vespa /document/v1 doc request
-      Map<String, Object> fields = new HashMap<>();
-      fields.put("content", aiDoc.getContent());
-      fields.put("embedding", new VespaEmbedding(embedding));
-      VespaDoc vespaDoc = new VespaDoc(fields);
-      String vespaJson = objectMapper.writeValueAsString(vespaDoc);
-
-      String docApiUrl = vespaDocApiUrl(aiDoc.getId());
-      log.debug("Vespa yql request (" + docApiUrl + "): " + vespaJson);
-
-      // Call the document API
-      start = System.currentTimeMillis();
-      String response = this.webClient.post()
+      return this.webClient.post()
           .uri(docApiUrl)
           .bodyValue(vespaJson)
           .header("Content-Type", "application/json")
-          .retrieve().bodyToMono(String.class).block();
-      this.insertHistogram.update(System.currentTimeMillis() - start);
-      this.insertMeter.mark();
-
-      log.debug("response: " + response);
+          .retrieve().bodyToMono(String.class)
+          .doOnSuccess(response -> {
+            this.insertHistogram.update(System.currentTimeMillis() - start);
+            this.insertMeter.mark();
+            log.debug("response: " + response);
+          });
+    });
+  }
 
-    } catch (JsonProcessingException e) {
-      throw new RuntimeException(e);
-    }
+  private Mono<String> addAiDoc(EmbeddedDoc embeddedDoc) {
+    this.feedQueueHistogram.update(System.currentTimeMillis() - embeddedDoc.embeddedAt());
+    return Mono.fromCallable(() -> toVespaJson(embeddedDoc.aiDoc(), embeddedDoc.embedding()))
+        .flatMap(vespaJson -> putVespaDoc(embeddedDoc.aiDoc().getId(), vespaJson));
   }
 
   private String vespaDocApiUrl(String id) {
@@ -133,94 +430,501 @@ public class VespaVectorStore implements VectorStore {
             this.config.namespace, this.config.docType, id);
   }
 
+  /**
+   * Puts the documents into Vespa as a two stage pipeline. Chunks are embedded in batches of
+   * {@code vespa.feed.embedBatchSize} on {@code vespa.feed.embedWorkers} threads and handed over
+   * through a queue of at most {@code vespa.feed.queueDepth} chunks to the feed stage, which keeps
+   * up to {@code vespa.feed.maxInFlight} /document/v1 requests in flight. The slower stage sets the
+   * pace through backpressure.
+   *
+   * <p>All documents are attempted, failures are collected and reported together in a
+   * {@link VespaFeedException} once the whole list has been processed.
+   */
   @Override
   public void add(List<Document> documents) {
-    // FIXME: We should figure out how to call the
-    //  "batch" vespa document-api instead of putting individual documents
-    documents.forEach(this::addAiDoc);
+    List<VespaFeedException.Failure> failures = new CopyOnWriteArrayList<>();
+    Flux.fromIterable(documents)
+        .buffer(this.config.feedEmbedBatchSize)
+        .flatMap(batch -> embedBatch(batch)
+                .onErrorResume(ex -> {
+                  log.warn("Failed to embed " + batch.size() + " documents: " + ex.getMessage());
+                  batch.forEach(aiDoc ->
+                      failures.add(new VespaFeedException.Failure(aiDoc.getId(), ex)));
+                  return Flux.empty();
+                }),
+            this.config.feedEmbedWorkers)
+        // Bounded hand-over queue between the embedding and the feed stage
+        .publishOn(Schedulers.parallel(), this.config.feedQueueDepth)
+        .flatMap(embeddedDoc -> addAiDoc(embeddedDoc)
+                .onErrorResume(ex -> {
+                  String docId = embeddedDoc.aiDoc().getId();
+                  log.warn("Failed to put document " + docId + ": " + ex.getMessage());
+                  failures.add(new VespaFeedException.Failure(docId, ex));
+                  return Mono.empty();
+                }),
+            this.config.feedMaxInFlight)
+        .blockLast();
+    if (!failures.isEmpty()) {
+      throw new VespaFeedException(documents.size(), failures);
+    }
   }
 
-  private void deleteDoc(String id) {
-    throw new RuntimeException("Not implemented yet!");
+  private Mono<String> deleteDoc(String id) {
+    return Mono.defer(() -> {
+      long start = System.currentTimeMillis();
+      return this.webClient.delete()
+          .uri(vespaDocApiUrl(id))
+          .retrieve().bodyToMono(String.class)
+          .doOnSuccess(response -> {
+            this.deleteHistogram.update(System.currentTimeMillis() - start);
+            this.deleteMeter.mark();
+            log.debug("response: " + response);
+          });
+    });
   }
 
+  /**
+   * Removes the documents with up to {@code vespa.feed.maxInFlight} /document/v1 requests in
+   * flight. Failures are logged and make the result {@code false}.
+   */
   @Override
   public Optional<Boolean> delete(List<String> idList) {
-    idList.forEach(this::deleteDoc);
-    return Optional.of(true);
+    return Optional.of(deleteDocs(idList).isEmpty());
   }
 
+  /**
+   * Like {@link #delete(List)}, but throws a {@link VespaFeedException} with the ids that could not
+   * be removed.
+   */
+  public void deleteOrThrow(List<String> idList) {
+    List<VespaFeedException.Failure> failures = deleteDocs(idList);
+    if (!failures.isEmpty()) {
+      throw new VespaFeedException(idList.size(), failures);
+    }
+  }
+
+  private List<VespaFeedException.Failure> deleteDocs(List<String> idList) {
+    List<VespaFeedException.Failure> failures = new CopyOnWriteArrayList<>();
+    Flux.fromIterable(idList)
+        .flatMap(id -> deleteDoc(id)
+                .onErrorResume(ex -> {
+                  log.warn("Failed to delete document " + id + ": " + ex.getMessage());
+                  failures.add(new VespaFeedException.Failure(id, ex));
+                  return Mono.empty();
+                }),
+            this.config.feedMaxInFlight)
+        .blockLast();
+    return failures;
+  }
+
+  /**
+   * Removes all documents matching a Vespa document selection expression, e.g.
+   * {@code embeddings.source=="https://..."}. Vespa visits and removes the matching documents
+   * server side, we only follow the continuation tokens until the whole corpus is covered.
+   *
+   * @return the number of removed documents
+   */
+  public long deleteBySelection(String selection) {
+    Long removed = deleteSelectionPage(selection, null)
+        .expand(page -> page.has("continuation")
+            ? deleteSelectionPage(selection, page.get("continuation").asText())
+            : Mono.empty())
+        .map(page -> page.path("documentCount").asLong(0))
+        .reduce(0L, Long::sum)
+        .block();
+    log.info("Removed " + removed + " documents matching: " + selection);
+    return removed == null ? 0 : removed;
+  }
+
+  /**
+   * Removes all chunks that were created from the article at the given url.
+   */
+  public long deleteBySource(String sourceUrl) {
+    String escaped = sourceUrl.replace("\\", "\\\\").replace("\"", "\\\"");
+    return deleteBySelection(String.format("%s.%s==\"%s\"",
+        this.config.docType, this.config.sourceFieldName, escaped));
+  }
+
+  /**
+   * Removes all chunks that were fed more than {@code age} ago.
+   */
+  public long deleteOlderThan(Duration age) {
+    long cutoff = Instant.now().minus(age).getEpochSecond();
+    return deleteBySelection(String.format("%s.%s<%d",
+        this.config.docType, this.config.timestampFieldName, cutoff));
+  }
+
+  private Mono<JsonNode> deleteSelectionPage(String selection, String continuation) {
+    UriComponentsBuilder uriBuilder = UriComponentsBuilder
+        .fromHttpUrl(String.format("%s/document/v1/%s/%s/docid",
+            this.config.containerEndpoint, this.config.namespace, this.config.docType))
+        .queryParam("cluster", "{cluster}")
+        .queryParam("selection", "{selection}");
+    Map<String, Object> uriVariables = new HashMap<>();
+    uriVariables.put("cluster", this.config.contentCluster);
+    uriVariables.put("selection", selection);
+    if (continuation != null) {
+      uriBuilder.queryParam("continuation", "{continuation}");
+      uriVariables.put("continuation", continuation);
+    }
+    return this.webClient.delete()
+        .uri(uriBuilder.encode().buildAndExpand(uriVariables).toUri())
+        .retrieve().bodyToMono(String.class)
+        .map(response -> {
+          try {
+            return objectMapper.readTree(response);
+          } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+          }
+        });
+  }
 
   @Override
   public List<Document> similaritySearch(SearchRequest request) {
+    checkSearchRequest(request);
+    List<Double> queryEmbedding = embedQuery(request.getQuery());
+    return queryVespa(request, queryEmbedding).block();
+  }
 
-    try {
-      if (request.getFilterExpression() != null) {
-        throw new UnsupportedOperationException(
-            "The [" + this.getClass() + "] doesn't support metadata filtering!");
+  /**
+   * Non-blocking variant of {@link #similaritySearch(SearchRequest)}. The (blocking) embedding
+   * client is called on the bounded elastic scheduler, the Vespa query is bounded by
+   * {@code vespa.queryTimeoutMs} and cancelling the returned Mono cancels the HTTP request. In
+   * {@code LEAN} result mode the embeddings of the hits are loaded with a blocking request, so
+   * {@link Document#getEmbedding()} must not be called on the thread the result is emitted on.
+   */
+  public Mono<List<Document>> similaritySearchReactive(SearchRequest request) {
+    return Mono.fromRunnable(() -> checkSearchRequest(request))
+        .then(Mono.fromCallable(() -> embedQuery(request.getQuery()))
+            .subscribeOn(Schedulers.boundedElastic()))
+        .flatMap(queryEmbedding -> queryVespa(request, queryEmbedding));
+  }
+
+  private void checkSearchRequest(SearchRequest request) {
+    if (request.getFilterExpression() != null) {
+      throw new UnsupportedOperationException(
+          "The [" + this.getClass() + "] doesn't support metadata filtering!");
+    }
+  }
+
+  private Mono<List<Document>> queryVespa(SearchRequest request, List<Double> queryEmbedding) {
+    Mono<DataBuffer> yqlRequest = Mono.fromCallable(() -> {
+      DataBuffer buffer = createYqlRequest(request, queryEmbedding);
+      if (log.isDebugEnabled()) {
+        log.debug("yql: " + buffer.toString(StandardCharsets.UTF_8));
       }
+      return buffer;
+    });
 
+    return Mono.defer(() -> {
       long start = System.currentTimeMillis();
-      List<Double> queryEmbedding = embeddingClient.embed(request.getQuery());
-      this.embeddingHistogram.update(System.currentTimeMillis() - start);
-      String yqlRequest = createYqlRequest(queryEmbedding);
-      log.debug("yql: " + yqlRequest);
-
-      start = System.currentTimeMillis();
-      String responseBody = webClient.post()
+      return webClient.post()
           .uri(queryUrl)
-          .bodyValue(yqlRequest)
+          .body(BodyInserters.fromDataBuffers(yqlRequest))
           .accept(MediaType.APPLICATION_JSON)
           .header("Content-Type", "application/json")
-          .retrieve().bodyToMono(String.class).block();
-      this.queryHistogram.update(System.currentTimeMillis() - start);
-
-      JsonNode responseJson = objectMapper.readTree(responseBody);
-      JsonNode root = responseJson.get("root");
-      if (root.has("errors")) {
-        JsonNode errors = root.get("errors");
-        throw new RuntimeException(objectMapper.writeValueAsString(errors));
+          .retrieve().bodyToMono(DataBuffer.class)
+          .timeout(Duration.ofMillis(this.config.queryTimeoutMs))
+          .switchIfEmpty(Mono.error(() -> new RuntimeException("Empty response from " + queryUrl)))
+          .map(responseBody -> {
+            this.queryHistogram.update(System.currentTimeMillis() - start);
+            this.queryMeter.mark();
+            try (InputStream in = responseBody.asInputStream(true)) {
+              return parseSearchResponse(in);
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+          });
+    });
+  }
+
+  private List<Double> embedQuery(String query) {
+    if (this.queryEmbeddingCache != null) {
+      return this.queryEmbeddingCache.get(query, this::embedQueryUncached);
+    }
+    return embedQueryUncached(query);
+  }
+
+  private List<Double> embedQueryUncached(String query) {
+    long start = System.currentTimeMillis();
+    List<Double> queryEmbedding = embeddingClient.embed(query);
+    this.embeddingHistogram.update(System.currentTimeMillis() - start);
+    return queryEmbedding;
+  }
+
+  /**
+   * Stream parses a /search/ response into documents without building the JSON tree.
+   */
+  private List<Document> parseSearchResponse(InputStream responseBody) throws IOException {
+    List<Document> aiDocs = new ArrayList<>();
+    try (JsonParser parser = objectMapper.getFactory().createParser(responseBody)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new RuntimeException("Unexpected search response from " + queryUrl);
       }
-      JsonNode children = responseJson.get("root").get("children");
-
-      List<Document> aiDocs = new ArrayList<>();
-      children.forEach(childNode -> {
-        String docId = childNode.get("id").asText().replace(vespaFullNs, "");
-        JsonNode jsonFields = childNode.get("fields");
-        String content = jsonFields.get(this.config.contentFieldName).asText();
-        ArrayNode jsonEmbeddingValues =
-            (ArrayNode) jsonFields.get(this.config.embeddingFieldName).get("values");
-        List<Double> embedding = new ArrayList<>();
-        jsonEmbeddingValues.forEach(valueNode -> {
-          Double embeddingValue = valueNode.asDouble();
-          embedding.add(embeddingValue);
-        });
-        Document aiDoc = new Document(docId, content, new HashMap<>());
-        aiDoc.setEmbedding(embedding);
-        aiDocs.add(aiDoc);
-      });
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        parser.nextToken();
+        if ("root".equals(name)) {
+          parseSearchRoot(parser, aiDocs);
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+    return aiDocs;
+  }
 
-      return aiDocs;
+  private void parseSearchRoot(JsonParser parser, List<Document> aiDocs) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      switch (name) {
+        case "errors" -> {
+          JsonNode errors = parser.readValueAsTree();
+          throw new RuntimeException(objectMapper.writeValueAsString(errors));
+        }
+        case "children" -> {
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            Document aiDoc = parseSearchHit(parser);
+            if (aiDoc != null) {
+              aiDocs.add(aiDoc);
+            }
+          }
+        }
+        default -> parser.skipChildren();
+      }
+    }
+  }
+
+  private Document parseSearchHit(JsonParser parser) throws IOException {
+    String docId = null;
+    String content = null;
+    List<Double> embedding = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if ("id".equals(name)) {
+        docId = parser.getText().replace(vespaFullNs, "");
+      } else if ("fields".equals(name)) {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String fieldName = parser.getCurrentName();
+          parser.nextToken();
+          if (this.config.contentFieldName.equals(fieldName)) {
+            content = parser.getText();
+          } else if (this.config.embeddingFieldName.equals(fieldName)) {
+            embedding = parseTensorValues(parser);
+          } else {
+            parser.skipChildren();
+          }
+        }
+      } else {
+        parser.skipChildren();
+      }
+    }
+    if (docId == null) {
+      return null;
+    }
+    if (embedding != null) {
+      Document aiDoc = new Document(docId, content, new HashMap<>());
+      aiDoc.setEmbedding(embedding);
+      return aiDoc;
+    }
+    String id = docId;
+    return new LazyEmbeddingDocument(docId, content, new HashMap<>(), () -> getEmbedding(id));
+  }
+
+  /**
+   * Reads the cells of a dense tensor rendered either as {@code {"values":[...]}} or as a plain
+   * array. The parser is positioned at the start of the value.
+   */
+  private static List<Double> parseTensorValues(JsonParser parser) throws IOException {
+    List<Double> values = null;
+    if (parser.currentToken() == JsonToken.START_ARRAY) {
+      values = new ArrayList<>();
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        values.add(parser.getDoubleValue());
+      }
+    } else if (parser.currentToken() == JsonToken.START_OBJECT) {
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        parser.nextToken();
+        if ("values".equals(name)) {
+          values = parseTensorValues(parser);
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } else {
+      parser.skipChildren();
+    }
+    return values;
+  }
+
+  /**
+   * The hash stored with every chunk so unchanged chunks can be skipped when an article is
+   * ingested again. Covers the {@link #embeddingLayout()} too, so all chunks are fed again after
+   * the cell type or the projection is changed.
+   */
+  public String chunkHash(String content) {
+    return this.embeddingLayout.isEmpty() ? contentHash(content)
+        : contentHash(this.embeddingLayout + "\n" + content);
+  }
+
+  /**
+   * How the embeddings are stored, from {@code vespa.cellType} ({@code vespa.int8Scale} for
+   * {@code INT8}) and the fingerprint of the projection. Empty for float embeddings that are not
+   * projected, so chunks fed before the layout was hashed are not fed again.
+   */
+  public String embeddingLayout() {
+    return this.embeddingLayout;
+  }
+
+  private static String embeddingLayout(VespaConfig config, EmbeddingProjection projection) {
+    List<String> layout = new ArrayList<>();
+    if (config.cellType == CellType.INT8) {
+      layout.add(config.cellType + ":" + config.int8Scale);
+    } else if (config.cellType != CellType.FLOAT) {
+      layout.add(config.cellType.toString());
+    }
+    if (projection != null) {
+      layout.add("projection:" + projection.fingerprint());
+    }
+    return String.join(",", layout);
+  }
+
+  /**
+   * Hex encoded SHA-256 of the text.
+   */
+  public static String contentHash(String content) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(content.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Looks up the content hash of every stored chunk of the given articles, with one query per
+   * article and up to {@code vespa.feed.maxInFlight} queries in flight.
+   *
+   * @return the content hashes keyed by document id
+   */
+  public Map<String, String> getContentHashes(Collection<String> sourceUrls) {
+    Map<String, String> hashes = new ConcurrentHashMap<>();
+    Flux.fromIterable(sourceUrls)
+        .flatMap(sourceUrl -> {
+              Map<String, Object> query = new HashMap<>();
+              query.put("yql", String.format("select %s from %s where %s contains \"%s\"",
+                  this.config.contentHashFieldName, this.config.docType,
+                  this.config.sourceFieldName,
+                  sourceUrl.replace("\\", "\\\\").replace("\"", "\\\"")));
+              query.put("hits", this.config.contentHashMaxHits);
+              query.put("presentation", Map.of("summary", this.config.hashSummaryName));
+              return this.webClient.post()
+                  .uri(queryUrl)
+                  .bodyValue(query)
+                  .accept(MediaType.APPLICATION_JSON)
+                  .retrieve().bodyToMono(JsonNode.class);
+            },
+            this.config.feedMaxInFlight)
+        .doOnNext(response -> {
+          JsonNode root = response.path("root");
+          if (root.has("errors")) {
+            throw new RuntimeException(root.get("errors").toString());
+          }
+          root.path("children").forEach(childNode -> {
+            JsonNode hash = childNode.path("fields").get(this.config.contentHashFieldName);
+            if (hash != null) {
+              hashes.put(childNode.get("id").asText().replace(vespaFullNs, ""), hash.asText());
+            }
+          });
+        })
+        .blockLast();
+    return hashes;
+  }
+
+  /**
+   * Fetches the stored embedding of a document from the document API.
+   */
+  public List<Double> getEmbedding(String docId) {
+    String url = String.format("%s?fieldSet=%s:%s", vespaDocApiUrl(docId),
+        this.config.docType, this.config.embeddingFieldName);
+    DataBuffer responseBody = this.webClient.get()
+        .uri(url)
+        .accept(MediaType.APPLICATION_JSON)
+        .retrieve().bodyToMono(DataBuffer.class).block();
+    if (responseBody == null) {
+      return new ArrayList<>();
+    }
+    try (InputStream in = responseBody.asInputStream(true);
+        JsonParser parser = objectMapper.getFactory().createParser(in)) {
+      List<Double> embedding = null;
+      parser.nextToken();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        parser.nextToken();
+        if ("fields".equals(name)) {
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if (this.config.embeddingFieldName.equals(fieldName)) {
+              embedding = parseTensorValues(parser);
+            } else {
+              parser.skipChildren();
+            }
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+      return embedding == null ? new ArrayList<>() : embedding;
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  private String createYqlRequest(List<Double> queryEmbedding) {
-    String queryEmbeddingStr = queryEmbedding.stream().map(d -> "" + d)
-        .collect(Collectors.joining(","));
-
-    String targetHits = String.format("{targetHits:%d}", this.config.targetHits);
-    String fields = String.format("%s, %s", this.config.embeddingFieldName,
-        this.config.contentFieldName);
-    String yqlRequest = this.queryTemplate.replace("{targetHits}", targetHits);
-    yqlRequest = yqlRequest.replace("{rankingName}", this.config.rankingName);
-    yqlRequest = yqlRequest.replace("{rankingInputName}", this.config.rankingInputName);
-    yqlRequest = yqlRequest.replace("{embeddingFieldName}", this.config.embeddingFieldName);
-    yqlRequest = yqlRequest.replace("{docType}", this.config.docType);
-    yqlRequest = yqlRequest.replace("{fields}", fields);
-    yqlRequest = yqlRequest.replace("{embedding}", queryEmbeddingStr);
-    return yqlRequest;
+  /**
+   * The query request for the embedding. The query text is only used by the HYBRID query mode,
+   * where its words are matched against the content.
+   */
+  private DataBuffer createYqlRequest(SearchRequest request, List<Double> embedding) {
+    List<Double> queryEmbedding = project(embedding);
+    VespaQueryTemplate.ValueWriter inputWriter = generator -> {
+      generator.writeStartObject();
+      generator.writeFieldName("query(" + this.config.rankingInputName + ")");
+      generator.writeStartArray();
+      for (Double value : queryEmbedding) {
+        switch (this.config.tensorFormat) {
+          case JSON -> generator.writeNumber(value.doubleValue());
+          case HEX -> generator.writeNumber(value.floatValue());
+        }
+      }
+      generator.writeEndArray();
+      if (this.config.cellType != CellType.FLOAT) {
+        // The full precision embedding is still used when re-ranking
+        generator.writeFieldName("query(" + this.config.quantizedRankingInputName + ")");
+        float[] values = VespaTensors.toFloats(queryEmbedding);
+        generator.writeStartArray();
+        if (this.config.cellType == CellType.BINARY) {
+          for (byte value : packSignBits(values)) {
+            generator.writeNumber(value);
+          }
+        } else {
+          for (float value : VespaTensors.quantize(values, this.config.cellType,
+              this.config.int8Scale)) {
+            generator.writeNumber(value);
+          }
+        }
+        generator.writeEndArray();
+      }
+      generator.writeEndObject();
+    };
+    return this.queryTemplate.render(this.bufferFactory, Map.of(
+            "input", inputWriter,
+            "query", generator -> generator.writeString(request.getQuery()),
+            "hits", generator -> generator.writeNumber(request.getTopK())),
+        queryEmbedding.size() * 20 + request.getQuery().length());
   }
 
 }
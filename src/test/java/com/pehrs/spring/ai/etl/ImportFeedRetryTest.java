@@ -0,0 +1,99 @@
+package com.pehrs.spring.ai.etl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import com.codahale.metrics.MetricRegistry;
+import com.pehrs.spring.ai.rss.RssArticle;
+import com.pehrs.spring.ai.vespa.VespaFeedException;
+import com.pehrs.spring.ai.vespa.VespaVectorStore;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.Step;
+import org.springframework.batch.core.job.builder.JobBuilder;
+import org.springframework.batch.core.launch.support.TaskExecutorJobLauncher;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.support.JobRepositoryFactoryBean;
+import org.springframework.batch.item.ItemWriter;
+import org.springframework.batch.item.support.ListItemReader;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.jdbc.support.JdbcTransactionManager;
+
+/**
+ * Runs the {@code importFeedToVespa} step of {@link BatchConfig} on one article with a writer that
+ * fails once, and checks that the retried chunk is still written.
+ */
+class ImportFeedRetryTest {
+
+  private static final String URL = "https://example.com/news/1";
+
+  @Test
+  void retriedChunkIsStored() throws Exception {
+    DataSource dataSource = new EmbeddedDatabaseBuilder()
+        .setType(EmbeddedDatabaseType.H2)
+        .generateUniqueName(true)
+        .addScript("/org/springframework/batch/core/schema-h2.sql")
+        .build();
+    JdbcTransactionManager transactionManager = new JdbcTransactionManager(dataSource);
+    JobRepositoryFactoryBean jobRepositoryFactory = new JobRepositoryFactoryBean();
+    jobRepositoryFactory.setDataSource(dataSource);
+    jobRepositoryFactory.setTransactionManager(transactionManager);
+    jobRepositoryFactory.afterPropertiesSet();
+    JobRepository jobRepository = jobRepositoryFactory.getObject();
+
+    MetricRegistry metricRegistry = new MetricRegistry();
+    DocumentSplitter documentSplitter = new DocumentSplitter(metricRegistry);
+    documentSplitter.chunkSize = 800;
+    documentSplitter.chunkOverlap = 0;
+    NearDuplicateFilter nearDuplicateFilter = new NearDuplicateFilter(metricRegistry, 0.9, 1000);
+
+    AtomicInteger writes = new AtomicInteger();
+    List<Document> stored = new CopyOnWriteArrayList<>();
+    ItemWriter<List<Document>> writer = chunk -> {
+      if (writes.getAndIncrement() == 0) {
+        throw new VespaFeedException(1, List.of(new VespaFeedException.Failure("chunk",
+            new IllegalStateException("Vespa is restarting"))));
+      }
+      chunk.forEach(stored::addAll);
+    };
+
+    BatchConfig batchConfig = new BatchConfig();
+    Step step = batchConfig.importFeedToVespa(jobRepository, transactionManager,
+        new ListItemReader<>(List.of(article())),
+        batchConfig.asyncProcessor(metricRegistry, documentSplitter, nearDuplicateFilter, null,
+            new SyncTaskExecutor(), true, true),
+        batchConfig.asyncWriter(writer), 3, 10);
+    Job job = new JobBuilder("importFeedRetryTest", jobRepository).start(step).build();
+    TaskExecutorJobLauncher jobLauncher = new TaskExecutorJobLauncher();
+    jobLauncher.setJobRepository(jobRepository);
+    jobLauncher.afterPropertiesSet();
+
+    JobExecution execution = jobLauncher.run(job, new JobParameters());
+
+    assertEquals(BatchStatus.COMPLETED, execution.getStatus());
+    assertEquals(2, writes.get());
+    assertFalse(stored.isEmpty());
+    assertEquals(DocumentSplitter.chunkId(URL, 0), stored.get(0).getId());
+    assertEquals(URL, stored.get(0).getMetadata().get(VespaVectorStore.URL_METADATA_KEY));
+  }
+
+  private static RssArticle article() {
+    String html = "<html><head><title>News</title></head><body><main><article>"
+        + "<h1>The harbour reopens</h1>"
+        + "<p>The harbour reopened on Monday after the storm, the council announced.</p>"
+        + "</article></main></body></html>";
+    return new RssArticle(URL, "text/html; charset=utf-8",
+        html.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,77 @@
+package com.pehrs.spring.ai.rss;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+
+/**
+ * An article served from the HTTP cache on a {@code 304 Not Modified} is extracted the same way as
+ * when it was downloaded, which needs the cached {@code Content-Type}.
+ */
+class NotModifiedReplayTest {
+
+  private static final String ETAG = "\"v1\"";
+  private static final String CONTENT_TYPE = "text/html; charset=utf-8";
+
+  @TempDir
+  Path cacheDir;
+
+  @Test
+  void notModifiedArticleGoesThroughHtmlFastPath() throws Exception {
+    byte[] html = ("<html><body><article><h1>Hamnen \u00f6ppnar igen</h1>"
+        + "<p>Hamnen \u00f6ppnade p\u00e5 m\u00e5ndagen efter stormen.</p></article></body></html>")
+        .getBytes(StandardCharsets.UTF_8);
+    AtomicInteger notModified = new AtomicInteger();
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/article", exchange -> {
+      if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        notModified.incrementAndGet();
+        exchange.sendResponseHeaders(304, -1);
+      } else {
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, html.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(html);
+        }
+      }
+      exchange.close();
+    });
+    server.start();
+    String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/article";
+
+    MetricRegistry metricRegistry = new MetricRegistry();
+    HttpConditionalCache httpCache = new HttpConditionalCache(cacheDir, metricRegistry, "");
+    RssXmlAiDocumentReader reader =
+        new RssXmlAiDocumentReader(List.of(), metricRegistry, httpCache, 0, 1, 1);
+    try {
+      assertNotNull(reader.fetchArticle(url).block());
+      // Not marked stored, so the cached body is replayed
+      RssArticle replayed = reader.fetchArticle(url).block();
+
+      assertEquals(1, notModified.get());
+      assertNotNull(replayed);
+      assertEquals(CONTENT_TYPE, replayed.contentType());
+      List<Document> documents =
+          new ArticleTextExtractor(metricRegistry, true).process(replayed);
+      assertEquals(1, metricRegistry.meter("extract.html").getCount());
+      assertEquals(0, metricRegistry.meter("extract.tika").getCount());
+      assertTrue(documents.get(0).getContent().contains("Hamnen \u00f6ppnar igen"));
+    } finally {
+      reader.close();
+      server.stop(0);
+    }
+  }
+}